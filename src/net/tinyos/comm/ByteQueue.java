@@ -101,7 +101,7 @@ public class ByteQueue
     int n = available();
     if( n > len )
       n = len;
-    int bend = off + len;
+    int bend = off + n;
     while( off < bend )
       b[off++] = buffer[nbegin++];
     return n;
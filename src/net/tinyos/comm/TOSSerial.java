@@ -232,7 +232,7 @@ public class TOSSerial extends NativeSerial implements SerialPort {
     public void write(byte[] b, int off, int len) {
       int nwritten = 0;
       while (nwritten < len)
-        nwritten += TOSSerial.this.write(b, nwritten, len - nwritten);
+        nwritten += TOSSerial.this.write(b, off + nwritten, len - nwritten);
     }
   }
 
@@ -38,7 +38,13 @@
  *
  * The base class for encoding and decoding tinyos messages.  Provides
  * methods to read and write bit fields at an offset for a particular bit
- * length.  Intended for use by the Java code generated by mig.
+ * length.  Intended for use by the Java code generated by mig.<p>
+ *
+ * A message is normally stored in a byte array, but can also be stored in
+ * a (typically direct or memory-mapped) ByteBuffer, without copying it
+ * onto the heap: build the message as usual, then call
+ * <code>init(ByteBuffer, int, int)</code> (e.g., to decode successive
+ * records of a mapped log file with a single message object).
  *
  * @version	1, 15 Jul 2002
  * @author	David Gay
@@ -47,6 +53,10 @@
  */
 package net.tinyos.message;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import net.tinyos.packet.PacketView;
+
 public class Message implements Cloneable {
 
   /**
@@ -63,6 +73,12 @@ public class Message implements Cloneable {
    */
   private byte[] data;
 
+  /**
+   * The buffer storing the data for this message, for messages that are not
+   * stored in a byte array (data is then null). Big-endian.
+   */
+  private ByteBuffer buffer;
+
   /**
    * The base offset into the data. This allows the message data to exist at
    * some non-zero offset into the actual data.
@@ -85,6 +101,12 @@ public class Message implements Cloneable {
    */
   protected long milliTime;
 
+  /**
+   * Time in nanoseconds since the epoch when message arrived
+   * (see net.tinyos.util.NanoClock)
+   */
+  protected long nanoTime;
+
   /** The serial packet this message originated from */
   private SerialPacket serialPacket;
   
@@ -173,6 +195,7 @@ public class Message implements Cloneable {
 
   protected void init(byte[] data, int base_offset, int data_length) {
     this.data = data;
+    this.buffer = null;
     this.base_offset = base_offset;
     this.data_length = data_length;
     if (base_offset + data_length > data.length)
@@ -199,7 +222,79 @@ public class Message implements Cloneable {
   }
 
   protected void init(Message msg, int base_offset, int data_length) {
-    init(msg.dataGet(), msg.base_offset + base_offset, data_length);
+    if (msg.data == null)
+      init(msg.buffer, msg.base_offset + base_offset, data_length);
+    else
+      init(msg.data, msg.base_offset + base_offset, data_length);
+  }
+
+  /**
+   * Construct a message stored in buffer, from absolute index base_offset,
+   * without copying it.
+   * 
+   * @param buffer
+   *          the storage for this message
+   * @param base_offset
+   *          the index of this message in buffer
+   * @param data_length
+   *          the length of the message data
+   */
+  public Message(ByteBuffer buffer, int base_offset, int data_length) {
+    init(buffer, base_offset, data_length);
+  }
+
+  /**
+   * Make this message use data_length bytes of buffer, from absolute index
+   * base_offset, as its storage. Messages over buffers with an accessible
+   * array use that array; others (direct and mapped buffers) are read and
+   * written in place. buffer's position, limit and byte order are not used
+   * or changed.
+   */
+  public void init(ByteBuffer buffer, int base_offset, int data_length) {
+    if (buffer.hasArray()) {
+      init(buffer.array(), buffer.arrayOffset() + base_offset, data_length);
+      return;
+    }
+    if (base_offset < 0 || data_length < 0
+        || base_offset + data_length > buffer.capacity())
+      throw new ArrayIndexOutOfBoundsException(
+          "Cannot create Message with base_offset " + base_offset
+              + ", data_length " + data_length + " and buffer capacity "
+              + buffer.capacity());
+    this.data = null;
+    this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+    this.base_offset = base_offset;
+    this.data_length = data_length;
+  }
+
+  /**
+   * Construct a message over part of a received packet, without copying
+   * it. The message's reception time is the view's.
+   * 
+   * @param view
+   *          the packet containing this message
+   * @param offset
+   *          the offset of this message in the view
+   * @param data_length
+   *          the length of the message data
+   */
+  public Message(PacketView view, int offset, int data_length) {
+    init(view, offset, data_length);
+  }
+
+  /**
+   * Make this message use part of a received packet as its storage (see
+   * Message(PacketView, int, int)). Note that the view's array is shared,
+   * and may be recycled once the view is released.
+   */
+  public void init(PacketView view, int offset, int data_length) {
+    if (offset < 0 || offset + data_length > view.length())
+      throw new ArrayIndexOutOfBoundsException(
+          "Cannot create Message with offset " + offset + ", data_length "
+              + data_length + " and view length " + view.length());
+    init(view.buffer(), view.offset() + offset, data_length);
+    this.milliTime = view.millis();
+    this.nanoTime = view.time();
   }
 
   private Message cloneself() {
@@ -224,9 +319,13 @@ public class Message implements Cloneable {
    */
   public Object clone() {
     Message copy = cloneself();
-    copy.init((byte[]) data.clone(), base_offset, data_length);
+    if (data == null)
+      copy.init(copyData(), 0, data_length); // clones are stored on the heap
+    else
+      copy.init((byte[]) data.clone(), base_offset, data_length);
     copy.am_type = this.am_type;
     copy.milliTime = this.milliTime;
+    copy.nanoTime = this.nanoTime;
     return copy;
   }
 
@@ -241,6 +340,7 @@ public class Message implements Cloneable {
     copy.init(new byte[size], 0, size);
     copy.am_type = this.am_type;
     copy.milliTime = this.milliTime;
+    copy.nanoTime = this.nanoTime;
     return copy;
   }
 
@@ -273,6 +373,16 @@ public class Message implements Cloneable {
    *              if any of the source or target indices are invalid
    */
   public void dataSet(byte[] data, int offsetFrom, int offsetTo, int length) {
+    if (this.data == null) {
+      if (offsetFrom < 0 || offsetTo < 0 || length < 0
+          || offsetFrom + length > data.length
+          || offsetTo + base_offset + length > buffer.capacity())
+        throw new ArrayIndexOutOfBoundsException("Message.dataSet: bad copy");
+      ByteBuffer to = buffer.duplicate();
+      to.position(offsetTo + base_offset);
+      to.put(data, offsetFrom, length);
+      return;
+    }
     System.arraycopy(data, offsetFrom, this.data, offsetTo + base_offset,
         length);
   }
@@ -289,19 +399,62 @@ public class Message implements Cloneable {
    *              if any of the target indices are invalid
    */
   public void dataSet(Message msg, int offsetTo) {
-    System.arraycopy(msg.dataGet(), msg.baseOffset(), this.data, offsetTo
-        + base_offset, msg.dataLength());
+    if (msg.data == null) {
+      dataSet(msg.copyData(), 0, offsetTo, msg.dataLength());
+      return;
+    }
+    dataSet(msg.dataGet(), msg.baseOffset(), offsetTo, msg.dataLength());
   }
 
   /**
    * Return the raw byte array representing the data of this message. Note that
    * only indices in the range (this.baseOffset(),
    * this.baseOffset()+this.dataLength()) are valid.
+   * 
+   * 
+   * @exception IllegalStateException
+   *              if this message is stored in a ByteBuffer (see bufferGet(),
+   *              or detach() to move it to a byte array)
    */
   public byte[] dataGet() {
+    if (data == null)
+      throw new IllegalStateException(
+          "Message.dataGet: message is stored in a ByteBuffer");
     return data;
   }
 
+  /**
+   * Move a message stored in a ByteBuffer to a new byte array, with base
+   * offset 0. The message and the buffer are independent afterwards: writes
+   * to either no longer reach the other. Does nothing if the message is
+   * already stored in a byte array.
+   */
+  public void detach() {
+    if (data == null)
+      init(copyData(), 0, data_length);
+  }
+
+  /**
+   * Return the ByteBuffer storing this message, or null if it is stored
+   * in a byte array (see dataGet()).
+   */
+  public ByteBuffer bufferGet() {
+    return buffer == null ? null : buffer.duplicate();
+  }
+
+  // A new array holding a copy of this message's data
+  private byte[] copyData() {
+    byte[] copy = new byte[data_length];
+    if (data == null) {
+      ByteBuffer from = buffer.duplicate();
+      from.position(base_offset);
+      from.get(copy);
+    } else {
+      System.arraycopy(data, base_offset, copy, 0, data_length);
+    }
+    return copy;
+  }
+
   /**
    * Return the base offset into the data array for this message.
    */
@@ -348,7 +501,8 @@ public class Message implements Cloneable {
 
   // Unsigned byte read
   private int ubyte(int offset) {
-    int val = data[base_offset + offset];
+    int val = data != null ? data[base_offset + offset]
+        : buffer.get(base_offset + offset);
 
     if (val < 0)
       return val + 256;
@@ -356,6 +510,42 @@ public class Message implements Cloneable {
       return val;
   }
 
+  // Byte write
+  private void setByte(int offset, long val) {
+    if (data != null)
+      data[base_offset + offset] = (byte) val;
+    else
+      buffer.put(base_offset + offset, (byte) val);
+  }
+
+  // Byte-aligned 8, 16, 32 and 64-bit fields (almost all mig fields) are
+  // read and written whole by the methods below, rather than bit by bit.
+  // i is an index into data.
+
+  private static int getInt32LE(byte[] data, int i) {
+    return data[i] & 0xff | (data[i + 1] & 0xff) << 8
+        | (data[i + 2] & 0xff) << 16 | data[i + 3] << 24;
+  }
+
+  private static int getInt32BE(byte[] data, int i) {
+    return data[i] << 24 | (data[i + 1] & 0xff) << 16
+        | (data[i + 2] & 0xff) << 8 | data[i + 3] & 0xff;
+  }
+
+  private static void setInt32LE(byte[] data, int i, int val) {
+    data[i] = (byte) val;
+    data[i + 1] = (byte) (val >> 8);
+    data[i + 2] = (byte) (val >> 16);
+    data[i + 3] = (byte) (val >> 24);
+  }
+
+  private static void setInt32BE(byte[] data, int i, int val) {
+    data[i] = (byte) (val >> 24);
+    data[i + 1] = (byte) (val >> 16);
+    data[i + 2] = (byte) (val >> 8);
+    data[i + 3] = (byte) val;
+  }
+
   // ASSUMES: little endian bits & bytes for the methods without BE, and
   // big endian bits & bytes for the methods with BE
 
@@ -372,6 +562,34 @@ public class Message implements Cloneable {
   protected long getUIntElement(int offset, int length) {
     checkBounds(offset, length);
 
+    if ((offset & 7) == 0) {
+      int i = base_offset + (offset >> 3);
+      if (data == null) {
+        switch (length) {
+        case 8:
+          return buffer.get(i) & 0xff;
+        case 16:
+          return Short.reverseBytes(buffer.getShort(i)) & 0xffff;
+        case 32:
+          return Integer.reverseBytes(buffer.getInt(i)) & 0xffffffffL;
+        case 64:
+          return Long.reverseBytes(buffer.getLong(i));
+        }
+      } else {
+        switch (length) {
+        case 8:
+          return data[i] & 0xff;
+        case 16:
+          return data[i] & 0xff | (data[i + 1] & 0xff) << 8;
+        case 32:
+          return getInt32LE(data, i) & 0xffffffffL;
+        case 64:
+          return getInt32LE(data, i) & 0xffffffffL
+              | (long) getInt32LE(data, i + 4) << 32;
+        }
+      }
+    }
+
     int byteOffset = offset >> 3;
     int bitOffset = offset & 7;
     int shift = 0;
@@ -420,33 +638,70 @@ public class Message implements Cloneable {
     checkBounds(offset, length);
     // checkValue(length, val);
 
+    if ((offset & 7) == 0) {
+      int i = base_offset + (offset >> 3);
+      if (data == null) {
+        switch (length) {
+        case 8:
+          buffer.put(i, (byte) val);
+          return;
+        case 16:
+          buffer.putShort(i, Short.reverseBytes((short) val));
+          return;
+        case 32:
+          buffer.putInt(i, Integer.reverseBytes((int) val));
+          return;
+        case 64:
+          buffer.putLong(i, Long.reverseBytes(val));
+          return;
+        }
+      } else {
+        switch (length) {
+        case 8:
+          data[i] = (byte) val;
+          return;
+        case 16:
+          data[i] = (byte) val;
+          data[i + 1] = (byte) (val >> 8);
+          return;
+        case 32:
+          setInt32LE(data, i, (int) val);
+          return;
+        case 64:
+          setInt32LE(data, i, (int) val);
+          setInt32LE(data, i + 4, (int) (val >> 32));
+          return;
+        }
+      }
+    }
+
     int byteOffset = offset >> 3;
     int bitOffset = offset & 7;
     int shift = 0;
 
     // all in one byte case
     if (length + bitOffset <= 8) {
-      data[base_offset + byteOffset] = (byte) ((ubyte(byteOffset) & ~(((1 << length) - 1) << bitOffset)) | val << bitOffset);
+      setByte(byteOffset, (ubyte(byteOffset) & ~(((1 << length) - 1) << bitOffset)) | val << bitOffset);
       return;
     }
 
     // set some high order bits
     if (bitOffset > 0) {
-      data[base_offset + byteOffset] = (byte) ((ubyte(byteOffset) & ((1 << bitOffset) - 1)) | val << bitOffset);
+      setByte(byteOffset, (ubyte(byteOffset) & ((1 << bitOffset) - 1)) | val << bitOffset);
       byteOffset++;
       shift += 8 - bitOffset;
       length -= 8 - bitOffset;
     }
 
     while (length >= 8) {
-      data[base_offset + (byteOffset++)] = (byte) (val >> shift);
+      setByte(byteOffset++, val >> shift);
       shift += 8;
       length -= 8;
     }
 
     // data for last byte
     if (length > 0)
-      data[base_offset + byteOffset] = (byte) ((ubyte(byteOffset) & ~((1 << length) - 1)) | val >> shift);
+      setByte(byteOffset, (ubyte(byteOffset) & ~((1 << length) - 1)) | val >> shift);
   }
 
   /**
@@ -511,6 +766,34 @@ public class Message implements Cloneable {
   protected long getUIntBEElement(int offset, int length) {
     checkBounds(offset, length);
 
+    if ((offset & 7) == 0) {
+      int i = base_offset + (offset >> 3);
+      if (data == null) {
+        switch (length) {
+        case 8:
+          return buffer.get(i) & 0xff;
+        case 16:
+          return buffer.getShort(i) & 0xffff;
+        case 32:
+          return buffer.getInt(i) & 0xffffffffL;
+        case 64:
+          return buffer.getLong(i);
+        }
+      } else {
+        switch (length) {
+        case 8:
+          return data[i] & 0xff;
+        case 16:
+          return (data[i] & 0xff) << 8 | data[i + 1] & 0xff;
+        case 32:
+          return getInt32BE(data, i) & 0xffffffffL;
+        case 64:
+          return (long) getInt32BE(data, i) << 32
+              | getInt32BE(data, i + 4) & 0xffffffffL;
+        }
+      }
+    }
+
     int byteOffset = offset >> 3;
     int bitOffset = offset & 7;
     long val = 0;
@@ -558,6 +841,43 @@ public class Message implements Cloneable {
     checkBounds(offset, length);
     // checkValue(length, val);
 
+    if ((offset & 7) == 0) {
+      int i = base_offset + (offset >> 3);
+      if (data == null) {
+        switch (length) {
+        case 8:
+          buffer.put(i, (byte) val);
+          return;
+        case 16:
+          buffer.putShort(i, (short) val);
+          return;
+        case 32:
+          buffer.putInt(i, (int) val);
+          return;
+        case 64:
+          buffer.putLong(i, val);
+          return;
+        }
+      } else {
+        switch (length) {
+        case 8:
+          data[i] = (byte) val;
+          return;
+        case 16:
+          data[i] = (byte) (val >> 8);
+          data[i + 1] = (byte) val;
+          return;
+        case 32:
+          setInt32BE(data, i, (int) val);
+          return;
+        case 64:
+          setInt32BE(data, i, (int) (val >> 32));
+          setInt32BE(data, i + 4, (int) val);
+          return;
+        }
+      }
+    }
+
     int byteOffset = offset >> 3;
     int bitOffset = offset & 7;
     int shift = 0;
@@ -566,7 +886,7 @@ public class Message implements Cloneable {
     if (length + bitOffset <= 8) {
       int mask = ((1 << length) - 1) << (8 - bitOffset - length);
 
-      data[base_offset + byteOffset] = (byte) ((ubyte(byteOffset) & ~mask) | val << (8 - bitOffset - length));
+      setByte(byteOffset, (ubyte(byteOffset) & ~mask) | val << (8 - bitOffset - length));
       return;
     }
 
@@ -575,20 +895,20 @@ public class Message implements Cloneable {
       int mask = (1 << (8 - bitOffset)) - 1;
 
       length -= 8 - bitOffset;
-      data[base_offset + byteOffset] = (byte) (ubyte(byteOffset) & ~mask | val >> length);
+      setByte(byteOffset, ubyte(byteOffset) & ~mask | val >> length);
       byteOffset++;
     }
 
     while (length >= 8) {
       length -= 8;
-      data[base_offset + (byteOffset++)] = (byte) (val >> length);
+      setByte(byteOffset++, val >> length);
     }
 
     // data for last byte
     if (length > 0) {
       int mask = (1 << (8 - length)) - 1;
 
-      data[base_offset + byteOffset] = (byte) ((ubyte(byteOffset) & mask) | val << (8 - length));
+      setByte(byteOffset, (ubyte(byteOffset) & mask) | val << (8 - length));
     }
   }
 
@@ -699,4 +1019,12 @@ public class Message implements Cloneable {
     public void setMilliTime(long milliTime) {
         this.milliTime = milliTime;
     }
+
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    public void setNanoTime(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
 }
@@ -0,0 +1,149 @@
+package net.tinyos.message;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * The scalar fields of a mig-generated Message class, for generic
+ * consumers (e.g., net.tinyos.mviz) that read every field of messages they
+ * know nothing about. A class's fields are found once, by reflection, and
+ * read with method handles thereafter: <code>read</code> reads them all in
+ * one pass, without reflection or boxing.
+ *
+ * The fields are the class's get_<i>name</i>() methods (scalar fields)
+ * and get_link_<i>name</i>() methods (link fields) returning a primitive
+ * type, sorted by name. Values are returned as longs (floating-point
+ * values are truncated).
+ */
+public final class MessageFields {
+    private static final MethodType READER_TYPE =
+	MethodType.methodType(long.class, Message.class);
+
+    private static final ClassValue<MessageFields> plans =
+	new ClassValue<MessageFields>() {
+	    protected MessageFields computeValue(Class<?> c) {
+		return new MessageFields(c);
+	    }
+	};
+
+    private final String[] names;
+    private final boolean[] links;
+    private final MethodHandle[] readers;
+    private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+    /**
+     * @return The fields of messageClass (a Message subclass)
+     */
+    public static MessageFields of(Class<?> messageClass) {
+	if (!Message.class.isAssignableFrom(messageClass))
+	    throw new IllegalArgumentException(messageClass + " is not a Message");
+	return plans.get(messageClass);
+    }
+
+    private MessageFields(Class<?> c) {
+	Method[] methods = c.getMethods();
+	Arrays.sort(methods, new Comparator<Method>() {
+		public int compare(Method a, Method b) {
+		    return a.getName().compareTo(b.getName());
+		}
+	    });
+
+	ArrayList<Method> fields = new ArrayList<Method>();
+	for (Method m : methods) {
+	    if (m.getName().startsWith("get_") && m.getParameterTypes().length == 0 &&
+		m.getReturnType().isPrimitive() && m.getReturnType() != void.class &&
+		!Modifier.isStatic(m.getModifiers()))
+		fields.add(m);
+	}
+
+	int n = fields.size();
+	names = new String[n];
+	links = new boolean[n];
+	readers = new MethodHandle[n];
+	MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+	for (int i = 0; i < n; i++) {
+	    Method m = fields.get(i);
+	    String name = m.getName().substring(4); // chop off "get_"
+	    if (name.startsWith("link_")) {
+		links[i] = true;
+		name = name.substring(5);
+	    }
+	    names[i] = name;
+	    index.put((links[i] ? "link_" : "") + name, i);
+	    try {
+		readers[i] = MethodHandles.explicitCastArguments(lookup.unreflect(m),
+								 READER_TYPE);
+	    }
+	    catch (IllegalAccessException e) {
+		throw new IllegalArgumentException("cannot access " + m);
+	    }
+	}
+    }
+
+    /**
+     * @return Number of fields
+     */
+    public int size() {
+	return names.length;
+    }
+
+    /**
+     * @return Name of field i, without the get_ or get_link_ prefix
+     */
+    public String getName(int i) {
+	return names[i];
+    }
+
+    /**
+     * @return true if field i is a link field (get_link_<i>name</i>)
+     */
+    public boolean isLink(int i) {
+	return links[i];
+    }
+
+    /**
+     * @return Index of scalar field name, or -1
+     */
+    public int indexOf(String name) {
+	Integer i = index.get(name);
+	return i == null ? -1 : i.intValue();
+    }
+
+    /**
+     * @return Index of link field name, or -1
+     */
+    public int linkIndexOf(String name) {
+	return indexOf("link_" + name);
+    }
+
+    /**
+     * Read all fields of message
+     * @param message A message of this MessageFields' class
+     * @param values Receives the value of field i in values[i]
+     *   (values.length must be at least size())
+     * @exception ArrayIndexOutOfBoundsException If message is too short
+     *   for some field
+     */
+    public void read(Message message, long[] values) {
+	try {
+	    for (int i = 0; i < readers.length; i++)
+		values[i] = (long)readers[i].invokeExact(message);
+	}
+	catch (RuntimeException e) {
+	    throw e;
+	}
+	catch (Error e) {
+	    throw e;
+	}
+	catch (Throwable e) {
+	    throw new RuntimeException(e);
+	}
+    }
+}
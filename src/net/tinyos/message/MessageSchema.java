@@ -0,0 +1,342 @@
+package net.tinyos.message;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The layout of an active message type, for decoding messages without a
+ * mig-generated class. Fields are described as in mig: a bit offset and
+ * bit length, a byte order and a signedness, and optionally a number of
+ * array elements (stored one after the other).
+ *
+ * A schema is compiled into a decode plan when built: <code>decode</code>
+ * reads every field (each array element) into consecutive slots of a
+ * long array in one pass, with byte-aligned 8, 16, 32 and 64-bit fields
+ * read whole. Schemas are immutable, and usually loaded from a descriptor
+ * file by a SchemaRegistry.
+ */
+public final class MessageSchema {
+    // Decode plan operations, by field (element) kind
+    private final static int U8 = 0, U16LE = 1, U16BE = 2, U32LE = 3,
+	U32BE = 4, U64LE = 5, U64BE = 6, BITS_LE = 7, BITS_BE = 8;
+
+    /**
+     * A field of a message schema
+     */
+    public static final class Field {
+	private final String name;
+	private final int offset, length, count;
+	private final boolean bigEndian, signed;
+	private final int slot;
+
+	/**
+	 * @param name Field name
+	 * @param offset Bit offset of the field (of its first element)
+	 * @param length Bit length of the field (of each element), 1 to 64
+	 * @param bigEndian true for big-endian (nx_) fields
+	 * @param signed true for signed fields
+	 * @param count Number of array elements, 1 for scalar fields
+	 */
+	public Field(String name, int offset, int length, boolean bigEndian,
+		     boolean signed, int count) {
+	    if (offset < 0 || length < 1 || length > 64 || count < 1)
+		throw new IllegalArgumentException("bad field " + name);
+	    this.name = name;
+	    this.offset = offset;
+	    this.length = length;
+	    this.bigEndian = bigEndian;
+	    this.signed = signed;
+	    this.count = count;
+	    this.slot = 0;
+	}
+
+	// f, at slot (fields are copied into their schema)
+	private Field(Field f, int slot) {
+	    this.name = f.name;
+	    this.offset = f.offset;
+	    this.length = f.length;
+	    this.bigEndian = f.bigEndian;
+	    this.signed = f.signed;
+	    this.count = f.count;
+	    this.slot = slot;
+	}
+
+	public String getName() { return name; }
+	public int getOffset() { return offset; }
+	public int getLength() { return length; }
+	public boolean isBigEndian() { return bigEndian; }
+	public boolean isSigned() { return signed; }
+	public int getCount() { return count; }
+
+	/**
+	 * @return Index of the field's (first element's) slot in decoded
+	 *   values
+	 */
+	public int getSlot() { return slot; }
+    }
+
+    private final String name;
+    private final int amType;
+    private final int size;
+    private final Field[] fields;
+    private final HashMap<String, Field> byName = new HashMap<String, Field>();
+
+    // The decode plan: for slot i, read a field of kind op[i] at byte
+    // (BITS_*: bit) offset at[i], of bit length bits[i], sign-extending
+    // from bit bits[i] if signed[i]
+    private final int slots;
+    private final byte[] op;
+    private final int[] at;
+    private final byte[] bits;
+    private final boolean[] signed;
+
+    /**
+     * Build a schema
+     * @param name Message type name
+     * @param amType AM type (0-255)
+     * @param size Message size in bytes. Decoded messages must be at
+     *   least this long.
+     * @param fields The message's fields (in slot order)
+     */
+    public MessageSchema(String name, int amType, int size, List<Field> fields) {
+	if (amType < 0 || amType > 255 || size < 0)
+	    throw new IllegalArgumentException("bad AM type or size for " + name);
+	this.name = name;
+	this.amType = amType;
+	this.size = size;
+	this.fields = new Field[fields.size()];
+
+	int n = 0;
+	for (int k = 0; k < this.fields.length; k++) {
+	    Field f = new Field(fields.get(k), n);
+	    this.fields[k] = f;
+	    if (f.offset + f.length * f.count > size * 8)
+		throw new IllegalArgumentException("field " + f.name + " of " + name +
+						   " does not fit in " + size + " bytes");
+	    if (byName.put(f.name, f) != null)
+		throw new IllegalArgumentException("duplicate field " + f.name +
+						   " in " + name);
+	    n += f.count;
+	}
+
+	slots = n;
+	op = new byte[n];
+	at = new int[n];
+	bits = new byte[n];
+	signed = new boolean[n];
+	for (Field f : this.fields) {
+	    for (int e = 0; e < f.count; e++) {
+		int s = f.slot + e;
+		int offset = f.offset + e * f.length;
+		at[s] = offset >> 3;
+		bits[s] = (byte)f.length;
+		signed[s] = f.signed && f.length < 64;
+		if ((offset & 7) != 0)
+		    op[s] = (byte)(f.bigEndian ? BITS_BE : BITS_LE);
+		else if (f.length == 8)
+		    op[s] = U8;
+		else if (f.length == 16)
+		    op[s] = (byte)(f.bigEndian ? U16BE : U16LE);
+		else if (f.length == 32)
+		    op[s] = (byte)(f.bigEndian ? U32BE : U32LE);
+		else if (f.length == 64)
+		    op[s] = (byte)(f.bigEndian ? U64BE : U64LE);
+		else
+		    op[s] = (byte)(f.bigEndian ? BITS_BE : BITS_LE);
+		if (op[s] >= BITS_LE)
+		    at[s] = offset;
+	    }
+	}
+    }
+
+    public String getName() {
+	return name;
+    }
+
+    public int getAMType() {
+	return amType;
+    }
+
+    /**
+     * @return Message size in bytes
+     */
+    public int getSize() {
+	return size;
+    }
+
+    /**
+     * @return Number of slots (values) filled by decode
+     */
+    public int getSlots() {
+	return slots;
+    }
+
+    public List<Field> getFields() {
+	List<Field> l = new ArrayList<Field>(fields.length);
+	for (Field f : fields)
+	    l.add(f);
+	return l;
+    }
+
+    /**
+     * @return Field called name, or null
+     */
+    public Field getField(String name) {
+	return byName.get(name);
+    }
+
+    /**
+     * Decode a message
+     * @param data Array holding the message
+     * @param offset Offset of the message in data
+     * @param length Length of the message (at least getSize())
+     * @param values Receives the field values, from values[0] (at least
+     *   getSlots() long)
+     * @exception ArrayIndexOutOfBoundsException If the message is too
+     *   short
+     */
+    public void decode(byte[] data, int offset, int length, long[] values) {
+	if (length < size || offset < 0 || offset + length > data.length)
+	    throw new ArrayIndexOutOfBoundsException(
+		"MessageSchema.decode: " + length + " byte " + name +
+		" message, expected " + size);
+
+	for (int s = 0; s < slots; s++) {
+	    int i = offset + at[s];
+	    long v;
+	    switch (op[s]) {
+	    case U8:
+		v = data[i] & 0xff;
+		break;
+	    case U16LE:
+		v = data[i] & 0xff | (data[i + 1] & 0xff) << 8;
+		break;
+	    case U16BE:
+		v = (data[i] & 0xff) << 8 | data[i + 1] & 0xff;
+		break;
+	    case U32LE:
+		v = int32LE(data, i) & 0xffffffffL;
+		break;
+	    case U32BE:
+		v = int32BE(data, i) & 0xffffffffL;
+		break;
+	    case U64LE:
+		v = int32LE(data, i) & 0xffffffffL | (long)int32LE(data, i + 4) << 32;
+		break;
+	    case U64BE:
+		v = (long)int32BE(data, i) << 32 | int32BE(data, i + 4) & 0xffffffffL;
+		break;
+	    case BITS_LE:
+		v = bitsLE(data, offset, at[s], bits[s]);
+		break;
+	    default:
+		v = bitsBE(data, offset, at[s], bits[s]);
+		break;
+	    }
+	    if (signed[s]) {
+		int shift = 64 - bits[s];
+		v = v << shift >> shift;
+	    }
+	    values[s] = v;
+	}
+    }
+
+    /**
+     * Decode a message (see decode(byte[], int, int, long[]))
+     */
+    public void decode(Message message, long[] values) {
+	ByteBuffer buffer = message.bufferGet();
+	if (buffer != null) {
+	    byte[] data = new byte[message.dataLength()];
+	    buffer.position(message.baseOffset());
+	    buffer.get(data);
+	    decode(data, 0, data.length, values);
+	}
+	else {
+	    decode(message.dataGet(), message.baseOffset(), message.dataLength(), values);
+	}
+    }
+
+    /**
+     * @return values (as filled by decode) formatted like the toString of
+     *   mig-generated classes
+     */
+    public String toString(long[] values) {
+	StringBuilder s = new StringBuilder("Message <" + name + "> \n");
+	for (Field f : fields) {
+	    s.append("  [").append(f.name).append('=');
+	    for (int e = 0; e < f.count; e++) {
+		if (e > 0)
+		    s.append(' ');
+		s.append("0x").append(Long.toHexString(values[f.slot + e]));
+	    }
+	    s.append("]\n");
+	}
+	return s.toString();
+    }
+
+    public String toString() {
+	return "MessageSchema <" + name + "> (AM type " + amType + ")";
+    }
+
+    private static int int32LE(byte[] data, int i) {
+	return data[i] & 0xff | (data[i + 1] & 0xff) << 8
+	    | (data[i + 2] & 0xff) << 16 | data[i + 3] << 24;
+    }
+
+    private static int int32BE(byte[] data, int i) {
+	return data[i] << 24 | (data[i + 1] & 0xff) << 16
+	    | (data[i + 2] & 0xff) << 8 | data[i + 3] & 0xff;
+    }
+
+    // Read the length-bit little-endian field at bit offset from base, as
+    // Message.getUIntElement
+    private static long bitsLE(byte[] data, int base, int offset, int length) {
+	int i = base + (offset >> 3);
+	int bitOffset = offset & 7;
+	int shift = 0;
+	long val = 0;
+
+	if (length + bitOffset <= 8)
+	    return ((data[i] & 0xff) >> bitOffset) & ((1 << length) - 1);
+
+	if (bitOffset > 0) {
+	    val = (data[i++] & 0xff) >> bitOffset;
+	    shift = 8 - bitOffset;
+	    length -= 8 - bitOffset;
+	}
+	while (length >= 8) {
+	    val |= (long)(data[i++] & 0xff) << shift;
+	    shift += 8;
+	    length -= 8;
+	}
+	if (length > 0)
+	    val |= (long)(data[i] & ((1 << length) - 1)) << shift;
+	return val;
+    }
+
+    // Read the length-bit big-endian field at (big-endian) bit offset from
+    // base, as Message.getUIntBEElement
+    private static long bitsBE(byte[] data, int base, int offset, int length) {
+	int i = base + (offset >> 3);
+	int bitOffset = offset & 7;
+	long val = 0;
+
+	if (length + bitOffset <= 8)
+	    return ((data[i] & 0xff) >> (8 - bitOffset - length)) & ((1 << length) - 1);
+
+	if (bitOffset > 0) {
+	    length -= 8 - bitOffset;
+	    val = (long)(data[i++] & ((1 << (8 - bitOffset)) - 1)) << length;
+	}
+	while (length >= 8) {
+	    length -= 8;
+	    val |= (long)(data[i++] & 0xff) << length;
+	}
+	if (length > 0)
+	    val |= (data[i] & 0xff) >> (8 - length);
+	return val;
+    }
+}
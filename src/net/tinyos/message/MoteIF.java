@@ -43,6 +43,7 @@ package net.tinyos.message;
 import net.tinyos.util.*;
 import net.tinyos.packet.*;
 import java.io.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * MoteIF provides an application-level Java interface for receiving 
@@ -146,6 +147,31 @@ public class MoteIF {
 	sender.send(moteId, m);
     }
 
+    /**
+     * Send length bytes of payload, from offset, with a pre-built serial
+     * header (see <code>Sender.send(SerialPacket, byte[], int, int)</code>)
+     * @exception IOException thrown if message could not be sent
+     */
+    synchronized public void send(SerialPacket header, byte[] payload,
+				  int offset, int length) throws IOException {
+	sender.send(header, payload, offset, length);
+    }
+
+    /**
+     * Send m to moteId via this mote interface, without waiting for the
+     * write to complete. Messages sent this way are written in order, and
+     * batched when the packet source supports it.
+     * @param moteId message destination
+     * @param m message
+     * @return A future completed with the write's outcome (see
+     *   <code>Sender.sendAsync</code>)
+     * @exception IOException thrown if m has no AM type
+     */
+    public CompletableFuture<Boolean> sendAsync(int moteId, Message m)
+	throws IOException {
+	return sender.sendAsync(moteId, m);
+    }
+
     /**
      * Register a listener for given messages type. The message m should be
      * an instance of a subclass of Message (generated by mig). When a
@@ -156,7 +182,8 @@ public class MoteIF {
      * Note that multiple MessageListeners can be registered for the same
      * message type, and in fact each listener can use a different template
      * type if it wishes (the only requirement is that m.getType() matches
-     * the received message). 
+     * the received message). Listeners that use the same template class
+     * share each received message, and must not modify it.
      *
      * @param m message template specifying which message to receive
      * @param l listener to which received messages are dispatched
@@ -165,6 +192,19 @@ public class MoteIF {
 	receiver.registerListener(m, l);
     }
 
+    /**
+     * Register a listener that receives a reusable message for each
+     * message of the given type, instead of a newly allocated one. The
+     * message is only valid until l.messageReceived returns (see
+     * Receiver.registerFlyweightListener).
+     *
+     * @param m message template specifying which message to receive
+     * @param l listener to which received messages are dispatched
+     */
+    synchronized public void registerFlyweightListener(Message m, MessageListener l) {
+	receiver.registerFlyweightListener(m, l);
+    }
+
     /**
      * Deregister a listener for a given message type.
      * @param m message template specifying which message to receive
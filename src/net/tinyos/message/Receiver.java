@@ -42,7 +42,6 @@ package net.tinyos.message;
 
 import net.tinyos.util.*;
 import net.tinyos.packet.*;
-import java.util.*;
 
 /**
  * Receiver class (receive tinyos messages).
@@ -58,39 +57,80 @@ public class Receiver implements PacketListenerIF {
 
   public static final boolean DISPLAY_ERROR_MSGS = true;
 
-  Hashtable templateTbl; // Mapping from AM type to msgTemplate
+  // Listeners for each AM type (null if none), grouped by template. Arrays
+  // are replaced, never modified (under this's lock), so packet reception
+  // needs no locking.
+  private volatile msgGroup[][] groups = new msgGroup[256][];
 
   PhoenixSource source;
 
   /**
-   * Inner class representing a single MessageListener and its associated
-   * Message template.
+   * Inner class representing the MessageListeners registered with
+   * equivalent Message templates (same class and size) and the same
+   * delivery mode. Each received message is decoded once per group.
+   * Groups are immutable, except for the flyweight message.
    */
-  class msgTemplate {
-    Message template;
+  class msgGroup {
+    final Message template;
 
-    MessageListener listener;
+    final boolean flyweight;
 
-    msgTemplate(Message template, MessageListener listener) {
+    final MessageListener[] listeners;
+
+    // Flyweight mode: the message and header handed to every listener,
+    // repositioned over each received packet
+    final Message reusable;
+
+    final SerialPacket header;
+
+    msgGroup(Message template, boolean flyweight, MessageListener listener) {
       this.template = template;
-      this.listener = listener;
+      this.flyweight = flyweight;
+      this.listeners = new MessageListener[] { listener };
+      if (flyweight) {
+        reusable = template.clone(0);
+        header = new SerialPacket(0);
+      } else {
+        reusable = null;
+        header = null;
+      }
     }
 
-    public boolean equals(Object o) {
-      try {
-        msgTemplate mt = (msgTemplate) o;
-        if (mt.template.getClass().equals(this.template.getClass())
-            && mt.listener.equals(this.listener)) {
-          return true;
-        }
-      } catch (Exception e) {
-        return false;
-      }
-      return false;
+    private msgGroup(msgGroup g, MessageListener[] listeners) {
+      this.template = g.template;
+      this.flyweight = g.flyweight;
+      this.listeners = listeners;
+      this.reusable = g.reusable;
+      this.header = g.header;
+    }
+
+    boolean matches(Message t, boolean fw) {
+      return t.getClass() == template.getClass()
+          && t.dataLength() == template.dataLength()
+          && fw == flyweight;
+    }
+
+    msgGroup with(MessageListener listener) {
+      MessageListener[] l = new MessageListener[listeners.length + 1];
+      System.arraycopy(listeners, 0, l, 0, listeners.length);
+      l[listeners.length] = listener;
+      return new msgGroup(this, l);
     }
 
-    public int hashCode() {
-      return listener.hashCode();
+    // Remove all occurrences of listener; null if none are left
+    msgGroup without(MessageListener listener) {
+      MessageListener[] kept = new MessageListener[listeners.length];
+      int n = 0;
+      for (int i = 0; i < listeners.length; i++)
+        if (!listeners[i].equals(listener))
+          kept[n++] = listeners[i];
+      if (n == listeners.length)
+        return this;
+      if (n == 0)
+        return null;
+      MessageListener[] l = new MessageListener[n];
+      System.arraycopy(kept, 0, l, 0, n);
+      return new msgGroup(this, l);
     }
   }
 
@@ -104,59 +144,118 @@ public class Receiver implements PacketListenerIF {
    *          packet source to listen to
    */
   public Receiver(PhoenixSource forwarder) {
-    this.templateTbl = new Hashtable();
     this.source = forwarder;
-    forwarder.registerPacketListener(this);
+    forwarder.registerDispatchListener(this, Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID);
   }
 
   /**
    * Register a particular listener for a particular message type. More than one
    * listener can be registered for each message type.
    * 
+   * Each received message is decoded once per template class: listeners
+   * that registered the same class (and template size) share the same
+   * Message instance, which they must not modify (use clone() to get a
+   * private copy).
+   * 
    * @param template
    *          specify message type and template we're listening for
    * @param listener
    *          destination for received messages
    */
   public void registerListener(Message template, MessageListener listener) {
-    Integer amType = new Integer(template.amType());
-    Vector vec = (Vector) templateTbl.get(amType);
-    if (vec == null) {
-      vec = new Vector();
+    register(template, listener, false);
+  }
+
+  /**
+   * Register a listener that receives a reusable Message (of template's
+   * class), repositioned over each received packet rather than allocated
+   * and copied. The message, its SerialPacket and its data array are only
+   * valid until messageReceived returns: listeners that keep anything
+   * must copy it (e.g., with clone()). Note that the message's dataGet()
+   * is the whole received packet, with the message at baseOffset().
+   * Listeners are invoked in the PhoenixSource thread, so the message is
+   * never used concurrently.
+   * 
+   * @param template
+   *          specify message type and template we're listening for
+   * @param listener
+   *          destination for received messages
+   */
+  public void registerFlyweightListener(Message template,
+                                        MessageListener listener) {
+    register(template, listener, true);
+  }
+
+  private synchronized void register(Message template,
+                                     MessageListener listener,
+                                     boolean flyweight) {
+    int amType = template.amType() & 0xff;
+    msgGroup[][] t = groups.clone();
+    msgGroup[] list = t[amType];
+    int n = list == null ? 0 : list.length;
+
+    for (int i = 0; i < n; i++) {
+      if (list[i].matches(template, flyweight)) {
+        msgGroup[] newList = list.clone();
+        newList[i] = list[i].with(listener);
+        t[amType] = newList;
+        groups = t;
+        return;
+      }
     }
-    vec.addElement(new msgTemplate(template, listener));
-    templateTbl.put(amType, vec);
+
+    msgGroup[] newList = new msgGroup[n + 1];
+    if (n > 0)
+      System.arraycopy(list, 0, newList, 0, n);
+    newList[n] = new msgGroup(template, flyweight, listener);
+    t[amType] = newList;
+    groups = t;
   }
 
   /**
-   * Stop listening for messages of the given type with the given listener.
+   * Stop listening for messages of the given type with the given listener
+   * (whether registered with registerListener or registerFlyweightListener).
    * 
    * @param template
    *          specify message type and template we're listening for
    * @param listener
    *          destination for received messages
    */
-  public void deregisterListener(Message template, MessageListener listener) {
-    Integer amType = new Integer(template.amType());
-    Vector vec = (Vector) templateTbl.get(amType);
-    if (vec == null) {
+  public synchronized void deregisterListener(Message template,
+                                              MessageListener listener) {
+    int amType = template.amType() & 0xff;
+    msgGroup[] list = groups[amType];
+    if (list == null) {
       throw new IllegalArgumentException(
           "No listeners registered for message type "
               + template.getClass().getName() + " (AM type "
               + template.amType() + ")");
     }
-    msgTemplate mt = new msgTemplate(template, listener);
     // Remove all occurrences
-    while (vec.removeElement(mt))
-      ;
-    if (vec.size() == 0)
-      templateTbl.remove(amType);
+    msgGroup[] kept = new msgGroup[list.length];
+    int n = 0;
+    for (int i = 0; i < list.length; i++) {
+      msgGroup g = list[i];
+      if (g.template.getClass() == template.getClass())
+        g = g.without(listener);
+      if (g != null)
+        kept[n++] = g;
+    }
+
+    msgGroup[][] t = groups.clone();
+    if (n == 0) {
+      t[amType] = null;
+    } else {
+      t[amType] = new msgGroup[n];
+      System.arraycopy(kept, 0, t[amType], 0, n);
+    }
+    groups = t;
   }
 
-  private void error(msgTemplate temp, String msg) {
+  private void error(msgGroup group, String msg) {
     System.err.println("receive error for "
-        + temp.template.getClass().getName() + " (AM type "
-        + temp.template.amType() + "): " + msg);
+        + group.template.getClass().getName() + " (AM type "
+        + group.template.amType() + "): " + msg);
   }
 
   
@@ -167,57 +266,80 @@ public class Receiver implements PacketListenerIF {
   
   @Override
   public void packetReceived(byte[] packet, long mili) {
+    this.packetReceived(packet, mili, NanoClock.fromMillis(mili));
+  }
+
+  @Override
+  public void packetReceived(byte[] packet, long mili, long nanos) {
+    packetReceived(new PacketView(packet, 0, packet.length, nanos,
+                                  source.getPacketSource().getName()));
+  }
+
+  @Override
+  public void packetReceived(PacketView packet) {
     if (DEBUG)
-      Dump.dump("Received message", packet);
+      Dump.dump("Received message", packet.toByteArray());
 
-    if (packet[0] != Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID)
+    if (packet.length() < 1 + SerialPacket.offset_data(0)
+        || packet.get(0) != Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID)
       return; // not for us.
 
-    SerialPacket msg = new SerialPacket(packet, 1);
-    Integer type = new Integer(msg.get_header_type());
-    Vector vec = (Vector) templateTbl.get(type);
-    if (vec == null) {
+    // Read the header in place: packet may be a shared buffer that is
+    // recycled once we return, so it is only copied if there are listeners
+    // that do not use flyweights
+    int type = packet.get(1 + SerialPacket.offset_header_type());
+    msgGroup[] list = groups[type];
+    if (list == null) {
       if (DEBUG)
         Dump.dump("Received packet with type " + type
-            + ", but no listeners registered", packet);
+            + ", but no listeners registered", packet.toByteArray());
       return;
     }
-    int length = msg.get_header_length();
+    int length = packet.get(1 + SerialPacket.offset_header_length());
+    int dest = packet.get(1 + SerialPacket.offset_header_dest()) << 8
+        | packet.get(2 + SerialPacket.offset_header_dest());
+    SerialPacket msg = null; // shared copy, made on demand
 
     try {
-        Enumeration en = vec.elements();
-        while (en.hasMoreElements()) {
-          msgTemplate temp = (msgTemplate) en.nextElement();
+      for (int i = 0; i < list.length; i++) {
+        msgGroup group = list[i];
+        Message received;
 
-          Message received;
-
-          // Erk - end up cloning the message multiple times in case
-          // different templates used for different listeners
-          try {
-            received = temp.template.clone(length);
+        try {
+          if (group.flyweight) {
+            received = group.reusable;
+            received.init(packet, 1 + SerialPacket.offset_data(0), length);
+            group.header.init(packet, 1, packet.length() - 1);
+            received.setSerialPacket(group.header);
+          } else {
+            if (msg == null)
+              msg = new SerialPacket(packet.toByteArray(), 1);
+            received = group.template.clone(length);
             received.dataSet(msg.dataGet(), SerialPacket.offset_data(0) + msg.baseOffset(),
                 0, length);
             received.setSerialPacket(msg);
-            received.setMilliTime(mili);
-
-          } catch (ArrayIndexOutOfBoundsException e) {
-            error(temp, "invalid length message received (too long)");
-            continue;
-          } catch (Exception e) {
-            error(temp, "couldn't clone message!");
-            continue;
+            received.setMilliTime(packet.millis());
+            received.setNanoTime(packet.time());
           }
+        } catch (ArrayIndexOutOfBoundsException e) {
+          error(group, "invalid length message received (too long)");
+          continue;
+        } catch (Exception e) {
+          error(group, "couldn't clone message!");
+          continue;
+        }
 
-          /*
-           * Messages that are longer than the template might have a variable-sized
-           * array at their end
-           */
-          if (temp.template.dataGet().length > length) {
-            error(temp, "invalid length message received (too short)");
-            continue;
-          }
-          temp.listener.messageReceived(msg.get_header_dest(), received);
+        /*
+         * Messages that are longer than the template might have a variable-sized
+         * array at their end
+         */
+        if (group.template.dataLength() > length) {
+          error(group, "invalid length message received (too short)");
+          continue;
         }
+        for (int j = 0; j < group.listeners.length; j++)
+          group.listeners[j].messageReceived(dest, received);
+      }
     } catch(Exception e){
     }
   }
@@ -0,0 +1,21 @@
+package net.tinyos.message;
+
+import net.tinyos.packet.PacketView;
+
+/**
+ * Listen to messages decoded with a MessageSchema (see SchemaReceiver)
+ */
+public interface SchemaListener {
+    /**
+     * Signal reception of a message described by schema
+     * @param to Destination of the message (see MessageListener)
+     * @param schema The message's schema
+     * @param values The message's fields, as filled by schema.decode. The
+     *   array is reused for later messages: it is only valid until this
+     *   method returns.
+     * @param packet The received packet (only valid until this method
+     *   returns, see PacketListenerIF)
+     */
+    public void messageReceived(int to, MessageSchema schema, long[] values,
+				PacketView packet);
+}
@@ -0,0 +1,146 @@
+package net.tinyos.message;
+
+import net.tinyos.packet.PacketListenerIF;
+import net.tinyos.packet.PacketView;
+import net.tinyos.packet.PhoenixSource;
+import net.tinyos.packet.Serial;
+import net.tinyos.util.NanoClock;
+
+/**
+ * Receive messages described by the schemas of a SchemaRegistry, the way
+ * Receiver receives mig-generated Messages. Listeners register for a
+ * message name or AM type; the schema is looked up in the registry as
+ * each message arrives, so schemas loaded or replaced later take effect
+ * immediately, without new classes.
+ *
+ * Each received message is decoded once, into an array of values shared
+ * by all its listeners (see SchemaListener).
+ */
+public class SchemaReceiver implements PacketListenerIF {
+    private final PhoenixSource source;
+    private final SchemaRegistry registry;
+
+    // Listeners for each AM type (null if none). Arrays are replaced, never
+    // modified (under this's lock).
+    private volatile SchemaListener[][] listeners = new SchemaListener[256][];
+
+    // Decoded values, reused for every message (packets are delivered by a
+    // single thread)
+    private long[] values = new long[0];
+
+    /**
+     * Create a receiver for the messages received by forwarder
+     * @param registry Schemas of the messages to decode
+     */
+    public SchemaReceiver(PhoenixSource forwarder, SchemaRegistry registry) {
+	this.source = forwarder;
+	this.registry = registry;
+	forwarder.registerDispatchListener(this, Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID);
+    }
+
+    public SchemaRegistry getRegistry() {
+	return registry;
+    }
+
+    /**
+     * Register a listener for messages of AM type amType. Messages of
+     * that type are ignored while the registry has no schema for it.
+     */
+    public synchronized void registerListener(int amType, SchemaListener listener) {
+	SchemaListener[][] t = listeners.clone();
+	SchemaListener[] l = t[amType & 0xff];
+	int n = l == null ? 0 : l.length;
+	SchemaListener[] newList = new SchemaListener[n + 1];
+	if (n > 0)
+	    System.arraycopy(l, 0, newList, 0, n);
+	newList[n] = listener;
+	t[amType & 0xff] = newList;
+	listeners = t;
+    }
+
+    /**
+     * Register a listener for messages of the registry's schema called
+     * name
+     * @exception IllegalArgumentException If there is no such schema
+     */
+    public void registerListener(String name, SchemaListener listener) {
+	MessageSchema schema = registry.get(name);
+	if (schema == null)
+	    throw new IllegalArgumentException("unknown message type " + name);
+	registerListener(schema.getAMType(), listener);
+    }
+
+    /**
+     * Stop delivering messages of AM type amType to listener
+     */
+    public synchronized void deregisterListener(int amType, SchemaListener listener) {
+	SchemaListener[] l = listeners[amType & 0xff];
+	if (l == null)
+	    return;
+	SchemaListener[] kept = new SchemaListener[l.length];
+	int n = 0;
+	for (int i = 0; i < l.length; i++)
+	    if (!l[i].equals(listener))
+		kept[n++] = l[i];
+
+	SchemaListener[][] t = listeners.clone();
+	if (n == 0) {
+	    t[amType & 0xff] = null;
+	}
+	else {
+	    t[amType & 0xff] = new SchemaListener[n];
+	    System.arraycopy(kept, 0, t[amType & 0xff], 0, n);
+	}
+	listeners = t;
+    }
+
+    public void packetReceived(byte[] packet) {
+	packetReceived(PacketView.wrap(packet));
+    }
+
+    public void packetReceived(byte[] packet, long mili) {
+	packetReceived(packet, mili, NanoClock.fromMillis(mili));
+    }
+
+    public void packetReceived(byte[] packet, long mili, long nanos) {
+	packetReceived(new PacketView(packet, 0, packet.length, nanos,
+				      source.getPacketSource().getName()));
+    }
+
+    public void packetReceived(PacketView packet) {
+	if (packet.length() < 1 + SerialPacket.offset_data(0) ||
+	    packet.get(0) != Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID)
+	    return;
+
+	int type = packet.get(1 + SerialPacket.offset_header_type());
+	SchemaListener[] l = listeners[type];
+	if (l == null)
+	    return;
+	MessageSchema schema = registry.get(type);
+	if (schema == null)
+	    return;
+
+	int length = packet.get(1 + SerialPacket.offset_header_length());
+	int dest = packet.get(1 + SerialPacket.offset_header_dest()) << 8 |
+	    packet.get(2 + SerialPacket.offset_header_dest());
+	int offset = 1 + SerialPacket.offset_data(0);
+	if (offset + length > packet.length() || length < schema.getSize()) {
+	    System.err.println("receive error for " + schema.getName() +
+			       " (AM type " + type + "): invalid length message received");
+	    return;
+	}
+
+	if (values.length < schema.getSlots())
+	    values = new long[schema.getSlots()];
+	schema.decode(packet.buffer(), packet.offset() + offset, length, values);
+	for (int i = 0; i < l.length; i++) {
+	    try {
+		l[i].messageReceived(dest, schema, values, packet);
+	    }
+	    catch (RuntimeException e) {
+		System.err.println("schema listener for " + schema.getName() +
+				   " failed: " + e);
+	    }
+	}
+    }
+}
@@ -0,0 +1,146 @@
+package net.tinyos.message;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A set of MessageSchemas, by name and AM type, usually loaded from
+ * descriptor files. Schemas can be added and replaced at any time (e.g.,
+ * when new message types are deployed); lookups need no locking.
+ *
+ * A descriptor file describes one or more messages. Each message starts
+ * with a line
+ * <pre>
+ *   message NAME AMTYPE SIZE
+ * </pre>
+ * (SIZE in bytes), followed by one line per field, in mig's terms:
+ * <pre>
+ *   field NAME BITOFFSET BITLENGTH be|le signed|unsigned [COUNT]
+ * </pre>
+ * where COUNT is the number of elements of array fields. Blank lines and
+ * lines starting with # are ignored.
+ */
+public class SchemaRegistry {
+    // Schemas by AM type. Replaced, never modified (under this's lock).
+    private volatile MessageSchema[] byType = new MessageSchema[256];
+
+    private final ConcurrentHashMap<String, MessageSchema> byName =
+	new ConcurrentHashMap<String, MessageSchema>();
+
+    /**
+     * Add schema, replacing any schema with the same name or AM type
+     */
+    public synchronized void register(MessageSchema schema) {
+	MessageSchema[] t = byType.clone();
+	MessageSchema old = t[schema.getAMType()];
+	if (old != null)
+	    byName.remove(old.getName());
+	old = byName.put(schema.getName(), schema);
+	if (old != null && t[old.getAMType()] == old)
+	    t[old.getAMType()] = null;
+	t[schema.getAMType()] = schema;
+	byType = t;
+    }
+
+    /**
+     * @return The schema for AM type amType, or null
+     */
+    public MessageSchema get(int amType) {
+	return byType[amType & 0xff];
+    }
+
+    /**
+     * @return The schema called name, or null
+     */
+    public MessageSchema get(String name) {
+	return byName.get(name);
+    }
+
+    /**
+     * Load and register the schemas in a descriptor file
+     * @return The schemas loaded
+     * @exception IOException If the file could not be read or is invalid
+     *   (no schemas are registered then)
+     */
+    public List<MessageSchema> load(File file) throws IOException {
+	Reader r = new FileReader(file);
+	try {
+	    return load(r);
+	}
+	finally {
+	    r.close();
+	}
+    }
+
+    /**
+     * Load and register the schemas in a descriptor (see load(File))
+     */
+    public List<MessageSchema> load(Reader descriptor) throws IOException {
+	List<MessageSchema> schemas = parse(descriptor);
+	for (MessageSchema schema : schemas)
+	    register(schema);
+	return schemas;
+    }
+
+    /**
+     * Parse a descriptor (see the class description)
+     * @return The schemas it describes
+     * @exception IOException If the descriptor could not be read or is
+     *   invalid
+     */
+    public static List<MessageSchema> parse(Reader descriptor) throws IOException {
+	BufferedReader in = new BufferedReader(descriptor);
+	List<MessageSchema> schemas = new ArrayList<MessageSchema>();
+	String name = null;
+	int amType = 0, size = 0;
+	List<MessageSchema.Field> fields = null;
+	int lineNumber = 0;
+	String line;
+
+	try {
+	    while ((line = in.readLine()) != null) {
+		lineNumber++;
+		line = line.trim();
+		if (line.length() == 0 || line.startsWith("#"))
+		    continue;
+
+		String[] words = line.split("\\s+");
+		if (words[0].equals("message") && words.length == 4) {
+		    if (name != null)
+			schemas.add(new MessageSchema(name, amType, size, fields));
+		    name = words[1];
+		    amType = Integer.decode(words[2]);
+		    size = Integer.decode(words[3]);
+		    fields = new ArrayList<MessageSchema.Field>();
+		}
+		else if (words[0].equals("field") && name != null &&
+			 (words.length == 6 || words.length == 7) &&
+			 (words[4].equals("be") || words[4].equals("le")) &&
+			 (words[5].equals("signed") || words[5].equals("unsigned"))) {
+		    fields.add(new MessageSchema.Field(words[1],
+						       Integer.decode(words[2]),
+						       Integer.decode(words[3]),
+						       words[4].equals("be"),
+						       words[5].equals("signed"),
+						       words.length == 7 ? Integer.decode(words[6]) : 1));
+		}
+		else {
+		    throw new IllegalArgumentException("syntax error");
+		}
+	    }
+	    if (name != null)
+		schemas.add(new MessageSchema(name, amType, size, fields));
+	}
+	catch (IllegalArgumentException e) { // includes NumberFormatException
+	    throw new IOException("message descriptor line " + lineNumber + ": " +
+				  e.getMessage());
+	}
+	return schemas;
+    }
+}
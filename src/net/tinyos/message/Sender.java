@@ -42,7 +42,10 @@ package net.tinyos.message;
 
 import net.tinyos.util.*;
 import net.tinyos.packet.*;
+import net.tinyos.packet.Serial;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Sender class (send tinyos messages).<p>
@@ -59,6 +62,11 @@ public class Sender {
 
     PhoenixSource sender;
 
+    // LowlevelTimeSyncMessages get stamped at send time
+    static {
+	TimeSyncInterceptor.register();
+    }
+
     /**
      * Create a sender talking to PhoenixSource forwarder. The group id of
      * sent packets is not set.
@@ -75,26 +83,137 @@ public class Sender {
      * @exception IOException thrown if message could not be sent
      */
     synchronized public void send(int moteId, Message m) throws IOException {
+	write(buildPacket(moteId, m));
+    }
+
+    /**
+     * Send a message with a pre-built serial header via this Sender's
+     * SerialForwarder. The header's destination, group and AM type are
+     * sent as is; its length is set to length.
+     * @param header The serial header (only its header fields are used)
+     * @param payload Array holding the message
+     * @param offset Offset of the message in payload
+     * @param length Message length
+     * @exception IOException thrown if message could not be sent
+     */
+    synchronized public void send(SerialPacket header, byte[] payload,
+				  int offset, int length) throws IOException {
+	write(buildPacket(header, payload, offset, length));
+    }
+
+    /**
+     * Send m to moteId via this Sender's SerialForwarder, without waiting
+     * for the write to complete (see PhoenixSource.writePacketAsync)
+     * @param moteId message destination
+     * @param m message
+     * @return A future completed with true if the message was acknowledged
+     *   (when the packet source provides this indication), or
+     *   exceptionally if the message could not be sent
+     * @exception IOException thrown if m has no AM type
+     */
+    public CompletableFuture<Boolean> sendAsync(int moteId, Message m)
+	throws IOException {
+	return writeAsync(buildPacket(moteId, m));
+    }
+
+    /**
+     * Send a message with a pre-built serial header (see
+     * send(SerialPacket, byte[], int, int)) without waiting for the write
+     * to complete (see sendAsync(int, Message)). The message is copied
+     * before this method returns.
+     */
+    public CompletableFuture<Boolean> sendAsync(SerialPacket header, byte[] payload,
+						int offset, int length) {
+	return writeAsync(buildPacket(header, payload, offset, length));
+    }
+
+    // Write packet, then recycle it. Packet sources are done with a packet
+    // once writePacket returns; after a failure it is left to the garbage
+    // collector, in case a send window still holds it.
+    private void write(PacketBuffer packet) throws IOException {
+	byte[] fullPacket = packet.getData();
+	sender.writePacket(fullPacket);
+	if (VERBOSE) Dump.dump("sent", fullPacket);
+	packet.release();
+    }
+
+    // Queue packet, and recycle it once successfully written
+    private CompletableFuture<Boolean> writeAsync(final PacketBuffer packet) {
+	if (VERBOSE) Dump.dump("queued", packet.getData());
+	CompletableFuture<Boolean> written = sender.writePacketAsync(packet.getData());
+	written.thenRun(new Runnable() {
+		public void run() {
+		    packet.release();
+		}
+	    });
+	return written;
+    }
+
+    // Build the serial packet (including the protocol byte) for m, straight
+    // into a pooled buffer
+    private static PacketBuffer buildPacket(int moteId, Message m) throws IOException {
 	int amType = m.amType();
-	byte[] data = m.dataGet();
 
 	if (amType < 0) {
 	    throw new IOException("unknown AM type for message " +
 				  m.getClass().getName());
 	}
 
-	SerialPacket packet =
-	    new SerialPacket(SerialPacket.offset_data(0) + data.length);
-	packet.set_header_dest(moteId);
-	packet.set_header_type((short)amType);
-	packet.set_header_length((short)data.length);
-	packet.dataSet(data, 0, packet.offset_data(0), data.length);
-
-	byte[] packetData = packet.dataGet();
-	byte[] fullPacket = new byte[packetData.length + 1];
-	fullPacket[0] = Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID;
-	System.arraycopy(packetData, 0, fullPacket, 1, packetData.length);
-	sender.writePacket(fullPacket);
-	if (VERBOSE) Dump.dump("sent", fullPacket);
+	int length = m.dataLength();
+	if (length > 255) {
+	    throw new IOException("message " + m.getClass().getName() +
+				  " too long");
+	}
+	PacketBuffer packet = allocate(length);
+	byte[] out = packet.getData();
+	out[1 + SerialPacket.offset_header_dest()] = (byte)(moteId >> 8);
+	out[2 + SerialPacket.offset_header_dest()] = (byte)moteId;
+	out[1 + SerialPacket.offset_header_src()] = 0;
+	out[2 + SerialPacket.offset_header_src()] = 0;
+	out[1 + SerialPacket.offset_header_group()] = 0;
+	out[1 + SerialPacket.offset_header_type()] = (byte)amType;
+
+	ByteBuffer data = m.bufferGet();
+	if (data != null) {
+	    data.position(m.baseOffset());
+	    data.get(out, 1 + SerialPacket.offset_data(0), length);
+	}
+	else {
+	    System.arraycopy(m.dataGet(), m.baseOffset(),
+			     out, 1 + SerialPacket.offset_data(0), length);
+	}
+	return packet;
+    }
+
+    private static PacketBuffer buildPacket(SerialPacket header, byte[] payload,
+					    int offset, int length) {
+	if (length < 0 || length > 255)
+	    throw new IllegalArgumentException("bad message length " + length);
+	PacketBuffer packet = allocate(length);
+	byte[] out = packet.getData();
+	ByteBuffer headerData = header.bufferGet();
+	if (headerData != null) {
+	    headerData.position(header.baseOffset());
+	    headerData.get(out, 1, SerialPacket.offset_data(0));
+	}
+	else {
+	    System.arraycopy(header.dataGet(), header.baseOffset(),
+			     out, 1, SerialPacket.offset_data(0));
+	}
+	out[1 + SerialPacket.offset_header_length()] = (byte)length;
+	System.arraycopy(payload, offset,
+			 out, 1 + SerialPacket.offset_data(0), length);
+	return packet;
+    }
+
+    // A buffer for a length-byte message, with the protocol byte and
+    // header length set
+    private static PacketBuffer allocate(int length) {
+	PacketBuffer packet =
+	    PacketBuffer.allocate(1 + SerialPacket.offset_data(0) + length);
+	byte[] out = packet.getData();
+	out[0] = Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID;
+	out[1 + SerialPacket.offset_header_length()] = (byte)length;
+	return packet;
     }
 }
@@ -0,0 +1,51 @@
+package net.tinyos.message;
+
+import net.tinyos.packet.SendInterceptor;
+import net.tinyos.packet.SendInterceptors;
+
+/**
+ * Stamps outgoing LowlevelTimeSyncMessages with the current time (plus
+ * the message's offset field) just before they are sent, for precise
+ * PC-to-mote time synchronization over the serial line. The fields are
+ * patched directly in the packet, without building any Message objects.
+ *
+ * Sender registers this interceptor; code sending time sync messages
+ * through a bare PacketSource must call <code>register</code> itself.
+ */
+public class TimeSyncInterceptor implements SendInterceptor {
+    private static TimeSyncInterceptor instance;
+
+    /**
+     * Register the time sync interceptor for LowlevelTimeSyncMessage.AM_TYPE
+     * (only the first call has any effect)
+     */
+    public static synchronized void register() {
+	if (instance == null) {
+	    instance = new TimeSyncInterceptor();
+	    SendInterceptors.register(LowlevelTimeSyncMessage.AM_TYPE, instance);
+	}
+    }
+
+    public void beforeSend(byte[] packet, int offset, int length) {
+	if (length < LowlevelTimeSyncMessage.offset_low() +
+	    LowlevelTimeSyncMessage.size_low())
+	    return;
+
+	int o = offset + LowlevelTimeSyncMessage.offset_offset();
+	int timeOffset = (packet[o] & 0xff) << 8 | packet[o + 1] & 0xff;
+	long curTime = System.currentTimeMillis() + timeOffset;
+
+	putUInt32(packet, offset + LowlevelTimeSyncMessage.offset_high(),
+		  curTime >> 32);
+	putUInt32(packet, offset + LowlevelTimeSyncMessage.offset_low(),
+		  curTime);
+    }
+
+    // Store the low 32 bits of value, big-endian, at packet[offset]
+    private static void putUInt32(byte[] packet, int offset, long value) {
+	packet[offset] = (byte)(value >> 24);
+	packet[offset + 1] = (byte)(value >> 16);
+	packet[offset + 2] = (byte)(value >> 8);
+	packet[offset + 3] = (byte)value;
+    }
+}
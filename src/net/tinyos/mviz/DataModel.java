@@ -31,8 +31,8 @@
 
 package net.tinyos.mviz;
 
-import java.lang.reflect.*;
 import java.util.*;
+import net.tinyos.message.MessageFields;
 
 public class DataModel {
     Vector packetClasses = new Vector();
@@ -88,33 +88,24 @@ public class DataModel {
     }
 
     private void loadFieldsAndLinks(Class pkt) {
-	Method[] methods = pkt.getMethods();
-	for (int i = 0; i < methods.length; i++) {
-	    Method method = methods[i];
-	    String name = method.getName();
-	    if (name.startsWith("get_") && !name.startsWith("get_link")) {
-		name = name.substring(4); // Chop off "get_"
-		Class[] params = method.getParameterTypes();
-		if (params.length == 0 && !method.getReturnType().isArray()) {
-		    loadField(name, method, method.getReturnType());
-		    System.out.println("Loading " + name);
-		}
+	MessageFields plan = MessageFields.of(pkt);
+	for (int i = 0; i < plan.size(); i++) {
+	    String name = plan.getName(i);
+	    if (!plan.isLink(i)) {
+		loadField(name);
+		System.out.println("Loading " + name);
 	    }
-	    else if (name.startsWith("get_link_") && name.endsWith("_value")) {
-		name = name.substring(9); // chop off "get_link_"
+	    else if (name.endsWith("_value")) {
 		name = name.substring(0, name.length() - 6); // chop off "_value"
-		Class[] params = method.getParameterTypes();
-		if (params.length == 0) {
-		    loadLink(name, method, method.getReturnType());
-		}
+		loadLink(name);
 	    }
 	}
     }
 
-    private void loadField(String name, Method method, Class param) {
+    private void loadField(String name) {
 	fields.add(name);
     }
-    private void loadLink(String name, Method method, Class param) {
+    private void loadLink(String name) {
 	System.out.println("Loading link <" + name + ">");
 	links.add(name);
     }
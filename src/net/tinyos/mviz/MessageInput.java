@@ -31,7 +31,6 @@
 
 package net.tinyos.mviz;
 
-import java.lang.reflect.*;
 import java.io.*;
 import java.util.*;
 
@@ -91,78 +90,39 @@ public class MessageInput implements net.tinyos.message.MessageListener {
     public void start() {}
    
     public void messageReceived(int to, Message message) {
-	Hashtable table = new Hashtable();
-	Hashtable linkTable = new Hashtable();
-	//System.out.println("Received message:");
-	//System.out.println(message);
+	MessageFields fields = MessageFields.of(message.getClass());
+	long[] values = new long[fields.size()];
+	try {
+	    fields.read(message, values);
+	}
+	catch (RuntimeException e) {
+	    System.err.println("Unable to read fields of " + message.getClass().getName() + ": " + e);
+	    return;
+	}
 
-	Class pktClass = message.getClass();
-	Method[] methods = pktClass.getMethods();
-	for (int i = 0; i < methods.length; i++) {
-	    Method method = methods[i];
-	    String name = method.getName();
-	    Class[] params = method.getParameterTypes();
-	    Class returnType = method.getReturnType();
-	    if (params.length != 0 || returnType.isArray()) {
-		continue;
-	    }
-	    if (name.startsWith("get_") && !name.startsWith("get_link")) {
-		name = name.substring(4); // Chop off "get_"
-		try {
-		    //System.out.println(name + " returns " + res);
-		    Integer result = (Integer)method.invoke(message, null);
-		    table.put(name, result);
-		}
-		catch (java.lang.IllegalAccessException exc) {
-		    System.err.println("Unable to access field " + name);
-		}
-		catch (java.lang.reflect.InvocationTargetException exc) {
-		    System.err.println("Unable to access target " + name);
-		}
-	    }
-	    else if (name.startsWith("get_link_")) {
-		name = name.substring(9); // chop off "get_link_"
-		try {
-		    Integer result = (Integer)method.invoke(message, null);
-		    linkTable.put(name, result);
-		}
-		catch (java.lang.IllegalAccessException exc) {
-		    System.err.println("Unable to access field " + name);
-		}
-		catch (java.lang.reflect.InvocationTargetException exc) {
-		    System.err.println("Unable to access target " + name);
-		}
-	    }
+	int originIndex = fields.indexOf("origin");
+	if (originIndex < 0) {
+	    System.err.println("Could not find origin field, discarding message.");
+	    return;
 	}
-	if (table.containsKey("origin")) {
-	    Integer origin = (Integer)table.get("origin");
-	    //table.remove("origin");
-	    Enumeration elements = table.keys();
-	    while (elements.hasMoreElements()) {
-		String key = (String)elements.nextElement();
-		Integer value = (Integer)table.get(key);
-		document.setMoteValue(origin.intValue(), key, value.intValue());
-	    }
-	    elements = linkTable.keys();
-	    while (elements.hasMoreElements()) {
-		String key = (String)elements.nextElement();
+	int origin = (int)values[originIndex];
+	for (int i = 0; i < fields.size(); i++) {
+	    if (fields.isLink(i)) {
+		String key = fields.getName(i);
 		if (!key.endsWith("_value")) {
 		    continue;
 		}
-		Integer value = (Integer)linkTable.get(key);
 		key = key.substring(0, key.length() - 6); // chop off "_value"
-		String addrkey = key + "_addr";
-		if (!linkTable.containsKey(addrkey)) {
+		int addr = fields.linkIndexOf(key + "_addr");
+		if (addr < 0) {
 		    continue;
 		}
-		Integer addr = (Integer)linkTable.get(addrkey);
-		document.setLinkValue(origin.intValue(), addr.intValue(), key, value.intValue());
+		document.setLinkValue(origin, (int)values[addr], key, (int)values[i]);
+	    }
+	    else {
+		document.setMoteValue(origin, fields.getName(i), (int)values[i]);
 	    }
 	}
-	else {
-	    System.err.println("Could not find origin field, discarding message.");
-	}
-	
     }
 
 }
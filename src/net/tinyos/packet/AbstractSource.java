@@ -89,7 +89,7 @@ abstract public class AbstractSource implements PacketSource
 	    return check(readSourcePacket());
 	}
 	catch (IOException e) {
-	    close();
+	    closeAfterError();
 	    throw e;
 	}
     }
@@ -101,11 +101,19 @@ abstract public class AbstractSource implements PacketSource
 	    return writeSourcePacket(check(packet));
 	}
 	catch (IOException e) {
-	    close();
+	    closeAfterError();
 	    throw e;
 	}
     }
 
+    /**
+     * Close this source because reading or writing it failed (see
+     * SFProtocol, which then skips writing its batched packets)
+     */
+    protected void closeAfterError() throws IOException {
+	close();
+    }
+
     protected byte[] check(byte[] packet) throws IOException {
 	return packet;
     }
@@ -58,8 +58,32 @@ import net.tinyos.util.*;
  * where source-args have reasonable defaults for most sources.
  * The <code>sourceHelp</code> method prints an up-to-date description
  * of known sources and their arguments.
+ *
+ * By default every network@ and sf@ source does its socket I/O in its
+ * own threads. After <code>setIOEngine</code>, new sources of these kinds
+ * share the I/O threads of the given IOEngine instead.
  */
 public class BuildSource {
+    private static volatile IOEngine ioEngine;
+
+    /**
+     * Make subsequently built network@ and sf@ sources use engine for
+     * their socket I/O
+     * @param engine The I/O engine to use, or null to go back to
+     *   blocking I/O with threads per source
+     */
+    public static void setIOEngine(IOEngine engine) {
+	ioEngine = engine;
+    }
+
+    /**
+     * @return The I/O engine used by new network@ and sf@ sources (null
+     *   if none)
+     */
+    public static IOEngine getIOEngine() {
+	return ioEngine;
+    }
+
     /**
      * Make a new PhoenixSource over a specified PacketSource
      * Note that a PhoenixSource must be started (<code>start</code> method)
@@ -193,6 +217,20 @@ public class BuildSource {
      * @return The new PacketSource
      */
     public static PacketSource makeSF(String host, int port) {
+	return makeSF(host, port, ioEngine);
+    }
+
+    /**
+     * Make a serial-forwarder source (tcp/ip client)
+     * @param host hostname
+     * @param port port number
+     * @param engine I/O engine to use for the connection (null for a
+     *   source with blocking I/O)
+     * @return The new PacketSource
+     */
+    public static PacketSource makeSF(String host, int port, IOEngine engine) {
+	if (engine != null)
+	    return new NioSFSource(host, port, engine);
 	return new SFSource(host, port);
     }
 
@@ -272,8 +310,23 @@ public class BuildSource {
      * @return The new packet source
      */
     public static PacketSource makeNetwork(String host, int port) {
-	return new Packetizer("network@" + host + ":" + port,
-			      new NetworkByteSource(host, port));
+	return makeNetwork(host, port, ioEngine);
+    }
+
+    /**
+     * Make a serial-port packet source for a network-accessible serial
+     * port. Serial packet sources report missing acknowledgements via a
+     * false result to writePacket.
+     * @param host hostname of network-accessible serial port
+     * @param port tcp/ip port number
+     * @param engine I/O engine to use for the connection (null for a
+     *   source with blocking I/O)
+     * @return The new packet source
+     */
+    public static PacketSource makeNetwork(String host, int port, IOEngine engine) {
+	ByteSource io = engine != null ? new NioByteSource(host, port, engine) :
+	    new NetworkByteSource(host, port);
+	return new Packetizer("network@" + host + ":" + port, io);
     }
 
     // We create tossim sources using reflection to avoid depending on
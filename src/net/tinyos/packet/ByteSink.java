@@ -0,0 +1,21 @@
+package net.tinyos.packet;
+
+import java.io.IOException;
+
+/**
+ * Receives the bytes of an event-driven ByteSource (see NioByteSource)
+ */
+interface ByteSink {
+    /**
+     * Called with each chunk of received bytes
+     * @param time Time at which the bytes were read (NanoClock)
+     * @exception IOException To close the source
+     */
+    void bytesReceived(byte[] buffer, int offset, int count, long time)
+	throws IOException;
+
+    /**
+     * Called when the source fails. No bytes follow until it is reopened.
+     */
+    void sourceFailed(IOException e);
+}
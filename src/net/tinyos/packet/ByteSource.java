@@ -36,11 +36,53 @@
 package net.tinyos.packet;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 public interface ByteSource
 {
     public void open() throws IOException;
     public void close();
     public byte readByte() throws IOException;
+
+    /**
+     * Read the bytes that are currently available, waiting until there
+     * is at least one. The default reads a single byte with readByte.
+     * @param buffer Where to store the bytes read
+     * @param offset Offset in buffer of first byte read
+     * @param length Maximum number of bytes to read (at least 1)
+     * @return The number of bytes read (at least 1)
+     * @exception IOException If the source failed or was closed
+     */
+    public default int read(byte[] buffer, int offset, int length)
+	throws IOException {
+	buffer[offset] = readByte();
+	return 1;
+    }
+
+    /**
+     * Read the bytes that are currently available into buffer (from its
+     * position up to its limit), waiting until there is at least one.
+     * The buffer's position is advanced by the number of bytes read.
+     * The default reads a single byte with readByte.
+     * @return The number of bytes read (at least 1)
+     * @exception IOException If the source failed or was closed
+     */
+    public default int read(ByteBuffer buffer) throws IOException {
+	buffer.put(readByte());
+	return 1;
+    }
+
     public void writeBytes(byte[] bytes) throws IOException;
+
+    /**
+     * Write the bytes between buffer's position and limit. The buffer's
+     * position is advanced to its limit. The default copies the bytes
+     * to an array for writeBytes(byte[]).
+     * @exception IOException If the source failed or was closed
+     */
+    public default void writeBytes(ByteBuffer bytes) throws IOException {
+	byte[] copy = new byte[bytes.remaining()];
+	bytes.get(copy);
+	writeBytes(copy);
+    }
 }
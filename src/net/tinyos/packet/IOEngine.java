@@ -0,0 +1,228 @@
+package net.tinyos.packet;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small, fixed pool of I/O threads, each running a
+ * java.nio.channels.Selector loop. Event-driven network sources (see
+ * <code>BuildSource.setIOEngine</code>) are spread over the threads
+ * round-robin, so hundreds of network@ and sf@ sources (and the clients
+ * of SFServers) need only a handful of threads for their socket I/O.
+ *
+ * Received bytes are decoded on the I/O threads: code called from there
+ * (packet write listeners, packet queues with the BLOCK overflow policy)
+ * must not block, or it stalls every source sharing the thread.
+ */
+public class IOEngine {
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Create and start an I/O engine
+     * @param name Name of the engine (used for thread names)
+     * @param threads Number of I/O threads
+     * @exception IOException If a selector could not be opened
+     */
+    public IOEngine(String name, int threads) throws IOException {
+	if (threads < 1)
+	    throw new IllegalArgumentException("bad thread count " + threads);
+	loops = new EventLoop[threads];
+	try {
+	    for (int i = 0; i < threads; i++)
+		loops[i] = new EventLoop(name + " I/O " + i);
+	}
+	catch (IOException e) {
+	    shutdown();
+	    throw e;
+	}
+	for (int i = 0; i < threads; i++)
+	    loops[i].thread.start();
+    }
+
+    /**
+     * Create and start an I/O engine with one thread per processor (at
+     * most 4)
+     */
+    public IOEngine(String name) throws IOException {
+	this(name, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @return Number of I/O threads
+     */
+    public int getThreads() {
+	return loops.length;
+    }
+
+    /**
+     * What is attached to the keys of an EventLoop's selector
+     */
+    interface Handler {
+	/**
+	 * Called in the I/O thread when key is ready
+	 */
+	void ready(SelectionKey key);
+
+	/**
+	 * Called in the I/O thread when the engine is shut down, or when
+	 * ready threw a RuntimeException (the key is then cancelled)
+	 */
+	void fail(IOException e);
+    }
+
+    // Pick the loop for a new connection
+    EventLoop next() {
+	return loops[(nextLoop.getAndIncrement() & 0x7fffffff) % loops.length];
+    }
+
+    /**
+     * Stop the I/O threads. All connections are closed, which the sources
+     * using them report as I/O errors.
+     */
+    public void shutdown() {
+	for (int i = 0; i < loops.length; i++)
+	    if (loops[i] != null)
+		loops[i].shutdown();
+    }
+
+    static class EventLoop implements Runnable {
+	final Selector selector;
+	final Thread thread;
+	private final ConcurrentLinkedQueue<Runnable> tasks =
+	    new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean running = true;
+
+	// Tasks to run later, by deadline (System.nanoTime); loop thread only
+	private static class Timed {
+	    final long deadline;
+	    final Runnable task;
+
+	    Timed(long deadline, Runnable task) {
+		this.deadline = deadline;
+		this.task = task;
+	    }
+	}
+	private final PriorityQueue<Timed> timed =
+	    new PriorityQueue<Timed>(8, new Comparator<Timed>() {
+		    public int compare(Timed a, Timed b) {
+			return Long.signum(a.deadline - b.deadline);
+		    }
+		});
+
+	EventLoop(String name) throws IOException {
+	    selector = Selector.open();
+	    thread = new Thread(this);
+	    thread.setName(name);
+	    thread.setDaemon(true);
+	}
+
+	boolean inLoop() {
+	    return Thread.currentThread() == thread;
+	}
+
+	// Run task in the loop thread
+	void execute(Runnable task) {
+	    tasks.add(task);
+	    if (!inLoop())
+		selector.wakeup();
+	}
+
+	// Run task in the loop thread in delayMillis ms (call in the loop
+	// thread)
+	void executeLater(Runnable task, long delayMillis) {
+	    timed.add(new Timed(System.nanoTime() + delayMillis * 1000000L, task));
+	}
+
+	void shutdown() {
+	    running = false;
+	    selector.wakeup();
+	}
+
+	// Run the due timed tasks
+	// @return ms until the next timed task, 0 if there is none
+	private long runTimed() {
+	    Timed next;
+	    while ((next = timed.peek()) != null) {
+		long wait = next.deadline - System.nanoTime();
+		if (wait > 0)
+		    return Math.max(wait / 1000000L, 1);
+		timed.poll();
+		runTask(next.task);
+	    }
+	    return 0;
+	}
+
+	private static void runTask(Runnable task) {
+	    try {
+		task.run();
+	    }
+	    catch (RuntimeException e) { }
+	}
+
+	public void run() {
+	    try {
+		loop();
+	    }
+	    finally {
+		IOException dead = new IOException("I/O engine shut down");
+		for (SelectionKey key : selector.keys()) {
+		    try {
+			((Handler)key.attachment()).fail(dead);
+		    }
+		    catch (RuntimeException e) { }
+		}
+		try {
+		    selector.close();
+		}
+		catch (IOException e) { }
+	    }
+	}
+
+	private void loop() {
+	    while (running) {
+		long timeout = runTimed();
+		try {
+		    // Tasks queued by the loop itself (no wakeup) run at once
+		    if (!tasks.isEmpty())
+			selector.selectNow();
+		    else if (timeout > 0)
+			selector.select(timeout);
+		    else
+			selector.select();
+		}
+		catch (IOException e) {
+		    break;
+		}
+
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+		    runTask(task);
+
+		Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+		while (ready.hasNext()) {
+		    SelectionKey key = ready.next();
+		    ready.remove();
+		    Handler handler = (Handler)key.attachment();
+		    try {
+			handler.ready(key);
+		    }
+		    catch (RuntimeException e) {
+			// Only this handler's connection is lost
+			key.cancel();
+			try {
+			    handler.fail(new IOException("I/O handler failed: " + e));
+			}
+			catch (RuntimeException fe) { }
+		    }
+		}
+	    }
+	}
+    }
+}
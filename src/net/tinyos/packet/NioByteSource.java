@@ -0,0 +1,70 @@
+package net.tinyos.packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A tcp/ip (client) byte-source driven by an IOEngine. Instead of being
+ * read, it pushes received bytes to its ByteSink (the Packetizer using it)
+ * from one of the engine's I/O threads.
+ */
+public class NioByteSource implements ByteSource {
+    private final String host;
+    private final int port;
+    private final NioConnection connection;
+    private volatile ByteSink sink;
+
+    public NioByteSource(String host, int port, IOEngine engine) {
+	this.host = host;
+	this.port = port;
+	connection = new NioConnection(engine) {
+		protected void received(byte[] buffer, int offset, int count,
+					long time) throws IOException {
+		    ByteSink s = sink;
+		    if (s != null)
+			s.bytesReceived(buffer, offset, count, time);
+		}
+
+		protected void failed(IOException e) {
+		    ByteSink s = sink;
+		    if (s != null)
+			s.sourceFailed(e);
+		}
+	    };
+    }
+
+    /**
+     * Set who gets the received bytes. Must be called before open.
+     */
+    void setSink(ByteSink sink) {
+	this.sink = sink;
+    }
+
+    public void open() throws IOException {
+	connection.connect(host, port);
+    }
+
+    public void close() {
+	connection.close();
+    }
+
+    public byte readByte() throws IOException {
+	throw new IOException("event-driven byte source cannot be read");
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+	throw new IOException("event-driven byte source cannot be read");
+    }
+
+    public int read(ByteBuffer buffer) throws IOException {
+	throw new IOException("event-driven byte source cannot be read");
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+	connection.send(ByteBuffer.wrap(bytes));
+    }
+
+    public void writeBytes(ByteBuffer bytes) throws IOException {
+	connection.send(bytes);
+    }
+}
@@ -0,0 +1,358 @@
+package net.tinyos.packet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.tinyos.util.NanoClock;
+
+/**
+ * A non-blocking tcp/ip connection driven by one of an IOEngine's
+ * threads. Received bytes are pushed to <code>received</code> in the I/O
+ * thread; writes are attempted immediately and whatever the socket does
+ * not accept is queued until it becomes writable. Writers (other than
+ * the I/O thread itself) wait while more than MAX_PENDING_OUTPUT bytes
+ * are queued.
+ *
+ * Alternatively, output can be pulled: after <code>outputReady</code>,
+ * the I/O thread calls <code>produceOutput</code> for as long as the
+ * socket accepts what it returns, so that the producer's data can wait in
+ * a queue of its own until the peer is ready for it. Pulled buffers are
+ * written with gathering writes, so they need not be copied together.
+ *
+ * A connection is either made with <code>connect</code> or wraps an
+ * accepted channel (<code>attach</code>). It can be reconnected after it
+ * was closed.
+ */
+abstract class NioConnection implements IOEngine.Handler {
+    final static int READ_BUFFER_SIZE = 4096;
+
+    final static int MAX_PENDING_OUTPUT = 64 * 1024;
+
+    // Most buffers produced for one gathering write
+    final static int MAX_GATHER = 64;
+
+    private final IOEngine.EventLoop loop;
+
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private final ByteBuffer in = ByteBuffer.wrap(readBuffer);
+
+    // All of the following are guarded by this
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean closed = true;
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+    private int pending; // bytes queued in output
+
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final AtomicBoolean outputRequested = new AtomicBoolean();
+    private final Runnable pullOutput = new Runnable() {
+	    public void run() {
+		pullOutput();
+	    }
+	};
+
+    NioConnection(IOEngine engine) {
+	loop = engine.next();
+    }
+
+    /**
+     * Called in the I/O thread with each chunk of received bytes
+     * @param time Time at which the bytes were read (NanoClock)
+     * @exception IOException To close the connection
+     */
+    abstract protected void received(byte[] buffer, int offset, int count,
+				     long time) throws IOException;
+
+    /**
+     * Called once when the connection fails (not when it is closed with
+     * <code>close</code>)
+     */
+    abstract protected void failed(IOException e);
+
+    /**
+     * Called in the I/O thread, with the connection locked, once all
+     * earlier output has been written and after <code>outputReady</code>:
+     * store the next buffers to write (between their position and limit)
+     * in buffers, which are written with a single gathering write. The
+     * buffers are kept until written, but only read. By default there are
+     * none.
+     * @return The number of buffers stored, 0 if there is no more output
+     * @exception IOException To close the connection
+     */
+    protected int produceOutput(ByteBuffer[] buffers) throws IOException {
+	return 0;
+    }
+
+    /**
+     * Connect to host:port. Blocks the caller until connected.
+     */
+    void connect(String host, int port) throws IOException {
+	SocketChannel ch = SocketChannel.open();
+
+	try {
+	    ch.connect(new InetSocketAddress(host, port));
+	}
+	catch (IOException e) {
+	    ch.close();
+	    throw e;
+	}
+	attach(ch);
+    }
+
+    /**
+     * Use ch, a connected channel (e.g., accepted by a server)
+     */
+    void attach(final SocketChannel ch) throws IOException {
+	try {
+	    ch.configureBlocking(false);
+	}
+	catch (IOException e) {
+	    ch.close();
+	    throw e;
+	}
+
+	synchronized (this) {
+	    if (!closed) {
+		ch.close();
+		throw new IOException("already open");
+	    }
+	    channel = ch;
+	    key = null;
+	    closed = false;
+	    output.clear();
+	    pending = 0;
+	}
+
+	loop.execute(new Runnable() {
+		public void run() {
+		    register(ch);
+		}
+	    });
+    }
+
+    // In the I/O thread: start watching ch
+    private void register(SocketChannel ch) {
+	synchronized (this) {
+	    if (closed || channel != ch)
+		return;
+	    try {
+		key = ch.register(loop.selector, interestOps(), this);
+		return;
+	    }
+	    catch (ClosedChannelException e) { }
+	}
+	fail(ch, new IOException("closed"));
+    }
+
+    private int interestOps() {
+	return output.isEmpty() ? SelectionKey.OP_READ :
+	    SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+    }
+
+    // In the I/O thread: key is readable and/or writable. Keys of
+    // channels closed since (e.g. by a reconnect) are ignored.
+    public void ready(SelectionKey key) {
+	SocketChannel ch = (SocketChannel)key.channel();
+
+	synchronized (this) {
+	    if (closed || channel != ch)
+		return;
+	}
+	try {
+	    if (key.isValid() && key.isReadable())
+		readReady(ch);
+	    if (key.isValid() && key.isWritable())
+		writeReady(key);
+	}
+	catch (IOException e) {
+	    fail(ch, e);
+	}
+	catch (RuntimeException e) {
+	    fail(ch, new IOException(e.toString()));
+	}
+    }
+
+    private void readReady(SocketChannel ch) throws IOException {
+	in.clear();
+	int count = ch.read(in);
+	if (count < 0)
+	    throw new IOException("end-of-stream");
+	if (count > 0)
+	    received(readBuffer, 0, count, NanoClock.now());
+    }
+
+    private synchronized void writeReady(SelectionKey key) throws IOException {
+	if (closed || key != this.key)
+	    return;
+	writeOutput();
+	notifyAll();
+    }
+
+    /**
+     * Have produceOutput called, in the I/O thread, as soon as the socket
+     * takes more output. Can be called from any thread.
+     */
+    void outputReady() {
+	if (!outputRequested.getAndSet(true))
+	    loop.execute(pullOutput);
+    }
+
+    // In the I/O thread
+    private void pullOutput() {
+	outputRequested.set(false);
+	SocketChannel ch;
+	IOException error;
+
+	synchronized (this) {
+	    if (closed || key == null)
+		return;
+	    ch = channel;
+	    try {
+		writeOutput();
+		return;
+	    }
+	    catch (IOException e) {
+		error = e;
+	    }
+	}
+	fail(ch, error);
+    }
+
+    // Write queued output, then produced output, as far as the socket
+    // accepts it (in the I/O thread, locked)
+    private void writeOutput() throws IOException {
+	flushOutput();
+	while (output.isEmpty()) {
+	    int count = produceOutput(gather);
+	    if (count == 0)
+		break;
+	    channel.write(gather, 0, count);
+	    for (int i = 0; i < count; i++) {
+		if (gather[i].hasRemaining()) {
+		    output.add(gather[i]);
+		    pending += gather[i].remaining();
+		}
+		gather[i] = null;
+	    }
+	}
+	key.interestOps(interestOps());
+    }
+
+    // Write as much queued output as the socket accepts (call locked)
+    private void flushOutput() throws IOException {
+	ByteBuffer head;
+	while ((head = output.peek()) != null) {
+	    int before = head.remaining();
+	    channel.write(head);
+	    pending -= before - head.remaining();
+	    if (head.hasRemaining())
+		return;
+	    output.poll();
+	}
+    }
+
+    /**
+     * Write the bytes between data's position and limit, advancing its
+     * position to its limit. The bytes are copied if they cannot be
+     * written immediately, so data can be reused on return.
+     */
+    void send(ByteBuffer data) throws IOException {
+	boolean wantWrite = false;
+	SocketChannel ch;
+
+	synchronized (this) {
+	    while (!closed && pending >= MAX_PENDING_OUTPUT && !loop.inLoop()) {
+		try {
+		    wait();
+		}
+		catch (InterruptedException e) {
+		    throw new IOException("interrupted");
+		}
+	    }
+	    if (closed)
+		throw new IOException("closed");
+
+	    ch = channel;
+	    try {
+		if (output.isEmpty())
+		    ch.write(data);
+	    }
+	    catch (IOException e) {
+		data = null;
+	    }
+	    if (data != null && data.hasRemaining()) {
+		ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+		copy.put(data);
+		copy.flip();
+		wantWrite = output.isEmpty();
+		output.add(copy);
+		pending += copy.remaining();
+	    }
+	}
+
+	if (data == null) {
+	    fail(ch, new IOException("write error"));
+	    throw new IOException("write error");
+	}
+	if (wantWrite) {
+	    loop.execute(new Runnable() {
+		    public void run() {
+			enableWrites();
+		    }
+		});
+	}
+    }
+
+    // In the I/O thread: ask to be told when the socket is writable
+    private synchronized void enableWrites() {
+	if (!closed && key != null && key.isValid())
+	    key.interestOps(interestOps());
+    }
+
+    /**
+     * Close the connection
+     * @return true if it was open
+     */
+    boolean close() {
+	return close(null);
+    }
+
+    // Close the connection if it is (still) using channel expected (any
+    // channel if expected is null)
+    private boolean close(SocketChannel expected) {
+	SocketChannel ch;
+
+	synchronized (this) {
+	    if (closed || expected != null && channel != expected)
+		return false;
+	    closed = true;
+	    ch = channel;
+	    channel = null;
+	    key = null;
+	    output.clear();
+	    pending = 0;
+	    notifyAll();
+	}
+	try {
+	    ch.close();
+	}
+	catch (IOException e) { }
+	return true;
+    }
+
+    // Close the connection because of e, and report it (once)
+    public void fail(IOException e) {
+	if (close(null))
+	    failed(e);
+    }
+
+    private void fail(SocketChannel ch, IOException e) {
+	if (close(ch))
+	    failed(e);
+    }
+}
@@ -0,0 +1,139 @@
+package net.tinyos.packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Packet source (tcp/ip client) for the serial forwarder protocol, driven
+ * by an IOEngine. Received bytes are decoded as they arrive, in the
+ * engine's I/O thread, and complete packets are queued for readPacket.
+ * The queue drops its oldest packets when full (see getDroppedPackets).
+ */
+class NioSFSource extends SFProtocol {
+    final static int RECEIVE_QUEUE_SIZE = 1024;
+
+    private final String host;
+    private final int port;
+    private final NioConnection connection;
+
+    private PacketRing received;
+
+    // Handshake state: whether the version is known, and the error that
+    // closed the connection (if any)
+    private boolean negotiated;
+    private IOException failure;
+
+    private final SFDecoder decoder = new SFDecoder() {
+	    protected void negotiated(int v) {
+		synchronized (NioSFSource.this) {
+		    version = v;
+		    negotiated = true;
+		    NioSFSource.this.notifyAll();
+		}
+	    }
+
+	    protected void packetReceived(byte[] packet, long timestamp) {
+		received.put(packet, timestamp);
+	    }
+	};
+
+    // Writes are built here (size byte, timestamp, up to 255 bytes)
+    private final ByteBuffer output =
+	ByteBuffer.allocate(1 + TIMESTAMP_SIZE + 255);
+
+    /**
+     * Packetizers are built using the makeXXX methods in BuildSource
+     */
+    NioSFSource(String host, int port, IOEngine engine) {
+	super("sf@" + host + ":" + port);
+	this.host = host;
+	this.port = port;
+	connection = new NioConnection(engine) {
+		protected void received(byte[] buffer, int offset, int count,
+					long time) throws IOException {
+		    decoder.decode(buffer, offset, offset + count);
+		}
+
+		protected void failed(IOException e) {
+		    connectionFailed(e);
+		}
+	    };
+    }
+
+    @Override
+    protected void openSource() throws IOException {
+	synchronized (this) {
+	    decoder.reset();
+	    negotiated = false;
+	    failure = null;
+	    received = new PacketRing(RECEIVE_QUEUE_SIZE, PacketRing.Overflow.DROP_OLDEST);
+	}
+
+	connection.connect(host, port);
+	connection.send(ByteBuffer.wrap(NIO_VERSION));
+
+	synchronized (this) {
+	    while (!negotiated && failure == null) {
+		try {
+		    wait();
+		}
+		catch (InterruptedException e) {
+		    connection.close();
+		    throw new IOException("interrupted");
+		}
+	    }
+	    if (failure != null)
+		throw failure;
+	}
+    }
+
+    @Override
+    protected void closeSource() throws IOException {
+	connection.close();
+	received.close();
+    }
+
+    @Override
+    protected void abortSource() {
+	connection.close();
+    }
+
+    private synchronized void connectionFailed(IOException e) {
+	failure = e;
+	received.close();
+	notifyAll();
+    }
+
+    @Override
+    protected byte[] readSourcePacket() throws IOException {
+	PacketRing packets = received;
+	try {
+	    byte[] p = packets.take(0);
+	    lastTimeStamp = packets.getTakenTime();
+	    return p;
+	}
+	catch (IOException e) {
+	    IOException cause = failure;
+	    throw cause != null ? cause : e;
+	}
+    }
+
+    @Override
+    protected boolean writeSourcePacket(byte[] packet, long mili) throws IOException {
+	synchronized (output) {
+	    output.clear();
+	    encodePacket(output, version, packet, 0, packet.length, mili);
+	    output.flip();
+	    connection.send(output);
+	}
+	return true;
+    }
+
+    /**
+     * @return Number of received packets discarded because the receive
+     *   queue was full
+     */
+    public long getDroppedPackets() {
+	return received.getDropped();
+    }
+}
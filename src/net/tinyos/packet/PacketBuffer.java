@@ -0,0 +1,130 @@
+package net.tinyos.packet;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A reference-counted packet, whose array is returned to a pool when the
+ * last reference is released. The array is exactly as long as the packet
+ * (there is one pool per packet length), so it can be handed to code
+ * expecting an ordinary packet byte[].
+ *
+ * A buffer starts with one reference, owned by whoever allocated it.
+ * Code that keeps a buffer (or its array) beyond the call that gave it the
+ * buffer must <code>retain</code> it and later <code>release</code> it,
+ * or take a <code>copy</code>. Buffers are shared read-only.
+ */
+public final class PacketBuffer {
+    // Packets up to MAX_POOLED_LENGTH bytes are pooled, keeping up to
+    // POOL_SIZE free arrays of each length
+    final static int MAX_POOLED_LENGTH = 256;
+
+    final static int POOL_SIZE = 64;
+
+    private static final Pool[] pools = new Pool[MAX_POOLED_LENGTH + 1];
+
+    static {
+	for (int i = 0; i <= MAX_POOLED_LENGTH; i++)
+	    pools[i] = new Pool();
+    }
+
+    private static class Pool {
+	final PacketBuffer[] free = new PacketBuffer[POOL_SIZE];
+	int count;
+    }
+
+    private static final AtomicIntegerFieldUpdater<PacketBuffer> REFS =
+	AtomicIntegerFieldUpdater.newUpdater(PacketBuffer.class, "refs");
+
+    private final byte[] data;
+    private final Pool pool; // null if not pooled
+    private volatile int refs;
+
+    private PacketBuffer(byte[] data, Pool pool) {
+	this.data = data;
+	this.pool = pool;
+	refs = 1;
+    }
+
+    /**
+     * Get a buffer for a length-byte packet. Its contents are undefined.
+     * @return A buffer with one reference
+     */
+    public static PacketBuffer allocate(int length) {
+	if (length <= MAX_POOLED_LENGTH) {
+	    Pool pool = pools[length];
+	    synchronized (pool) {
+		if (pool.count > 0) {
+		    PacketBuffer buffer = pool.free[--pool.count];
+		    pool.free[pool.count] = null;
+		    buffer.refs = 1;
+		    return buffer;
+		}
+	    }
+	    return new PacketBuffer(new byte[length], pool);
+	}
+	return new PacketBuffer(new byte[length], null);
+    }
+
+    /**
+     * Make a (non-pooled) buffer holding packet
+     * @return A buffer with one reference
+     */
+    public static PacketBuffer wrap(byte[] packet) {
+	return new PacketBuffer(packet, null);
+    }
+
+    /**
+     * @return The packet. Do not modify it, and do not use it after
+     *   releasing your reference.
+     */
+    public byte[] getData() {
+	return data;
+    }
+
+    /**
+     * @return The packet length
+     */
+    public int length() {
+	return data.length;
+    }
+
+    /**
+     * Add a reference to this buffer
+     * @return this buffer
+     */
+    public PacketBuffer retain() {
+	for (;;) {
+	    int r = refs;
+	    if (r <= 0)
+		throw new IllegalStateException("packet buffer already released");
+	    if (REFS.compareAndSet(this, r, r + 1))
+		return this;
+	}
+    }
+
+    /**
+     * Drop a reference to this buffer. The buffer is recycled when the
+     * last reference is dropped.
+     */
+    public void release() {
+	int r = REFS.decrementAndGet(this);
+	if (r > 0)
+	    return;
+	if (r < 0)
+	    throw new IllegalStateException("packet buffer already released");
+	if (pool != null) {
+	    synchronized (pool) {
+		if (pool.count < POOL_SIZE)
+		    pool.free[pool.count++] = this;
+	    }
+	}
+    }
+
+    /**
+     * @return A newly allocated copy of the packet, which the caller can
+     *   keep and modify
+     */
+    public byte[] copy() {
+	return data.clone();
+    }
+}
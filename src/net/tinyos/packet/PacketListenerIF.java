@@ -43,4 +43,49 @@ package net.tinyos.packet;
 public interface PacketListenerIF extends java.util.EventListener {
   public void packetReceived(byte[] packet);
   public void packetReceived(byte[] packet, long mili);
+
+  /**
+   * Packet reception with a high-resolution timestamp. By default,
+   * forwards to packetReceived(packet, mili).
+   * @param mili Reception time in milliseconds since the epoch
+   * @param nanos Reception time in nanoseconds since the epoch
+   *   (see net.tinyos.util.NanoClock)
+   */
+  default public void packetReceived(byte[] packet, long mili, long nanos) {
+    packetReceived(packet, mili);
+  }
+
+  /**
+   * Packet reception from a PhoenixSource. By default, forwards to
+   * packetReceived(packet.getData(), mili, nanos).
+   *
+   * The packet is shared by all listeners and recycled once they have all
+   * returned: it must not be modified, and listeners that keep it (or its
+   * array) after returning must call packet.retain() (and later
+   * packet.release()), or keep packet.copy() instead.
+   * @param mili Reception time in milliseconds since the epoch
+   * @param nanos Reception time in nanoseconds since the epoch
+   */
+  default public void packetReceived(PacketBuffer packet, long mili, long nanos) {
+    packetReceived(packet.getData(), mili, nanos);
+  }
+
+  /**
+   * Packet reception from a PhoenixSource, as a view carrying the packet's
+   * reception time and source. By default, forwards to the PacketBuffer
+   * variant (or, for views of part of a packet or of an unpooled array,
+   * the byte[] variant with packet.toPacket()).
+   *
+   * The same sharing rules as for PacketBuffers apply: listeners that keep
+   * the view after returning must call packet.retain() (and later
+   * packet.release()), or keep packet.toByteArray() instead.
+   */
+  default public void packetReceived(PacketView packet) {
+    PacketBuffer buffer = packet.getPacketBuffer();
+    if (buffer != null && packet.isWhole()) {
+      packetReceived(buffer, packet.millis(), packet.time());
+    } else {
+      packetReceived(packet.toPacket(), packet.millis(), packet.time());
+    }
+  }
 }
@@ -0,0 +1,288 @@
+package net.tinyos.packet;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free ring of received packets. Each slot holds a packet
+ * together with its reception timestamp (a NanoClock time), so the two can
+ * never drift apart.
+ *
+ * The ring is designed for one producer (the Packetizer reader thread)
+ * and one consumer. When the ring is full, the producer applies the
+ * configured overflow policy:
+ * - BLOCK: wait for the consumer to free a slot
+ * - DROP_OLDEST: discard the oldest queued packet
+ * - DROP_NEWEST: discard the packet being added
+ * Discarded packets are counted (see <code>getDropped</code>).
+ *
+ * Packets can be queued as PacketBuffers, in which case the ring owns one
+ * reference to each, passed on to the consumer by take (see
+ * <code>getTakenBuffer</code>) or released when the packet is dropped.
+ */
+public class PacketRing {
+    /**
+     * What to do with a new packet when the ring is full
+     */
+    public enum Overflow { BLOCK, DROP_OLDEST, DROP_NEWEST }
+
+    // How long a blocked producer sleeps before re-checking for space
+    // or closing, in nanoseconds
+    private final static long BLOCK_PARK = 10000000L;
+
+    private static class Slot {
+	byte[] packet;
+	PacketBuffer buffer;
+	long time;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final Overflow overflow;
+
+    // head: next slot to consume. Advanced by the consumer, and by the
+    // producer when dropping the oldest packet, hence the CAS.
+    // tail: next slot to fill. Only advanced by the producer.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile Thread consumer;
+    private volatile Thread producer;
+    private volatile boolean closed;
+    private volatile long dropped;
+
+    // Reception time of the first packet put into the empty ring
+    // (producer-side only)
+    private long waitingSince;
+
+    // Timestamp and buffer of the last packet returned by take
+    // (consumer-side only)
+    private long takenTime;
+    private PacketBuffer takenBuffer;
+
+    /**
+     * Create a new ring
+     * @param capacity Maximum number of queued packets (rounded up to a
+     *   power of two)
+     * @param overflow Policy to apply when the ring is full
+     */
+    public PacketRing(int capacity, Overflow overflow) {
+	if (capacity <= 0)
+	    throw new IllegalArgumentException("bad capacity " + capacity);
+	int size = 1;
+	while (size < capacity)
+	    size <<= 1;
+	slots = new Slot[size];
+	for (int i = 0; i < size; i++)
+	    slots[i] = new Slot();
+	mask = size - 1;
+	this.overflow = overflow;
+    }
+
+    /**
+     * Add a packet to the ring (producer side)
+     * @param packet Packet to add
+     * @param time Reception time of packet
+     * @return false if the packet (or, for BLOCK, the ring) was closed
+     *   or the packet was dropped by the DROP_NEWEST policy
+     */
+    public boolean put(byte[] packet, long time) {
+	return put(packet, null, time);
+    }
+
+    /**
+     * Add a packet buffer to the ring (producer side). The ring takes over
+     * the caller's reference to buffer, even if put fails.
+     * @param buffer Packet to add
+     * @param time Reception time of packet
+     * @return See put(byte[], long)
+     */
+    public boolean put(PacketBuffer buffer, long time) {
+	if (put(buffer.getData(), buffer, time))
+	    return true;
+	buffer.release();
+	return false;
+    }
+
+    private boolean put(byte[] packet, PacketBuffer buffer, long time) {
+	long t = tail.get();
+
+	for (;;) {
+	    long h = head.get();
+	    if (t - h < slots.length)
+		break;
+	    if (closed)
+		return false;
+
+	    switch (overflow) {
+	    case DROP_NEWEST:
+		dropped++;
+		return false;
+	    case DROP_OLDEST:
+		// If the CAS fails the consumer just took the packet,
+		// which leaves room all the same
+		PacketBuffer lost = slots[(int)h & mask].buffer;
+		if (head.compareAndSet(h, h + 1)) {
+		    dropped++;
+		    if (lost != null)
+			lost.release();
+		}
+		break;
+	    default:
+		producer = Thread.currentThread();
+		if (t - head.get() >= slots.length && !closed)
+		    LockSupport.parkNanos(this, BLOCK_PARK);
+		producer = null;
+		break;
+	    }
+	}
+
+	if (head.get() == t)
+	    waitingSince = time;
+	Slot slot = slots[(int)t & mask];
+	slot.packet = packet;
+	slot.buffer = buffer;
+	slot.time = time;
+	tail.set(t + 1);
+
+	Thread waiting = consumer;
+	if (waiting != null)
+	    LockSupport.unpark(waiting);
+	return true;
+    }
+
+    /**
+     * Remove the oldest packet from the ring (consumer side). The packet's
+     * timestamp is available from <code>getTakenTime</code>.
+     * @param deadline Time (System.currentTimeMillis) at which to give up,
+     *   0 to wait forever
+     * @return The packet, or null if deadline passed
+     * @exception IOException If the consumer was interrupted, or the ring
+     *   is closed and empty
+     */
+    public byte[] take(long deadline) throws IOException {
+	for (;;) {
+	    byte[] packet = poll();
+	    if (packet != null)
+		return packet;
+
+	    if (closed)
+		throw new IOException("closed");
+
+	    long now = System.currentTimeMillis();
+	    if (deadline != 0 && now >= deadline)
+		return null;
+
+	    consumer = Thread.currentThread();
+	    if (head.get() >= tail.get() && !closed) {
+		if (deadline != 0)
+		    LockSupport.parkNanos(this, (deadline - now) * 1000000L);
+		else
+		    LockSupport.park(this);
+	    }
+	    consumer = null;
+	    if (Thread.interrupted())
+		throw new IOException("interrupted");
+	}
+    }
+
+    /**
+     * Remove the oldest packet from the ring if there is one, without
+     * waiting (consumer side). As for take, the packet's timestamp and
+     * buffer are available from getTakenTime and getTakenBuffer.
+     * @return The packet, or null if the ring is empty
+     */
+    public byte[] poll() {
+	for (;;) {
+	    long h = head.get();
+	    if (h >= tail.get())
+		return null;
+
+	    Slot slot = slots[(int)h & mask];
+	    byte[] packet = slot.packet;
+	    PacketBuffer buffer = slot.buffer;
+	    long time = slot.time;
+
+	    // The slot contents are only ours if no-one dropped it
+	    // while we were reading it
+	    if (head.compareAndSet(h, h + 1)) {
+		Thread blocked = producer;
+		if (blocked != null)
+		    LockSupport.unpark(blocked);
+		takenTime = time;
+		takenBuffer = buffer;
+		return packet;
+	    }
+	}
+    }
+
+    /**
+     * @return Reception time of the first packet put since the ring was
+     *   last seen empty, i.e., since when packets have been waiting
+     *   continuously, or -1 if the ring is empty (producer side)
+     */
+    public long getWaitingSince() {
+	return head.get() < tail.get() ? waitingSince : -1;
+    }
+
+    /**
+     * @return Reception time of the packet last returned by take
+     *   (only meaningful in the consumer thread)
+     */
+    public long getTakenTime() {
+	return takenTime;
+    }
+
+    /**
+     * @return The buffer holding the packet last returned by take, if it
+     *   was queued as a PacketBuffer (null otherwise). The consumer owns
+     *   the ring's reference to it, and should release it when done.
+     *   (only meaningful in the consumer thread)
+     */
+    public PacketBuffer getTakenBuffer() {
+	return takenBuffer;
+    }
+
+    /**
+     * Release any producer blocked by the BLOCK policy. Subsequent puts
+     * on a full ring fail, and the consumer fails once the ring is empty.
+     */
+    public void close() {
+	closed = true;
+	Thread blocked = producer;
+	if (blocked != null)
+	    LockSupport.unpark(blocked);
+	Thread waiting = consumer;
+	if (waiting != null)
+	    LockSupport.unpark(waiting);
+    }
+
+    /**
+     * @return Number of queued packets
+     */
+    public int size() {
+	return (int)(tail.get() - head.get());
+    }
+
+    /**
+     * @return Ring capacity
+     */
+    public int getCapacity() {
+	return slots.length;
+    }
+
+    /**
+     * @return Overflow policy
+     */
+    public Overflow getOverflow() {
+	return overflow;
+    }
+
+    /**
+     * @return Number of packets discarded because the ring was full
+     */
+    public long getDropped() {
+	return dropped;
+    }
+}
@@ -87,6 +87,32 @@ public interface PacketSource
      */
     public byte[] readPacket() throws IOException;
 
+    /**
+     * Read a packet into a PacketBuffer. Sources that receive packets
+     * into pooled buffers avoid an allocation per packet this way; the
+     * default wraps the result of readPacket.
+     * @return The packet read, with one reference owned by the caller
+     *   (who must release it)
+     * @exception IOException If the source detected a problem. The source
+     *   is automatically closed.
+     */
+    default public PacketBuffer readPacketBuffer() throws IOException {
+	return PacketBuffer.wrap(readPacket());
+    }
+
+    /**
+     * Read a packet as a PacketView, with its reception time and this
+     * source's name. The default reads a PacketBuffer and stamps it with
+     * the current time.
+     * @return The packet read. The caller owns the view's buffer reference
+     *   and must release it (<code>PacketView.release</code>).
+     * @exception IOException If the source detected a problem. The source
+     *   is automatically closed.
+     */
+    default public PacketView readPacketView() throws IOException {
+	return new PacketView(readPacketBuffer(), NanoClock.now(), getName());
+    }
+
     /**
      * Write a packet
      * @param packet The packet to write. The format is decribed above.
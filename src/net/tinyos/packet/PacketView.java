@@ -0,0 +1,183 @@
+package net.tinyos.packet;
+
+import net.tinyos.util.NanoClock;
+
+/**
+ * A received packet (in PacketSource format) or part of one: a backing
+ * array plus the offset and length of the bytes of interest, with the
+ * packet's reception time and the name of the source it came from.
+ * Layers that decode part of a packet (e.g., a SerialPacket at offset 1)
+ * take a <code>slice</code> rather than copying the bytes out.
+ *
+ * Views are immutable, but share their backing array. When the array
+ * belongs to a PacketBuffer (<code>getPacketBuffer</code>), the view is
+ * only valid as long as the buffer is: see PacketListenerIF.
+ */
+public final class PacketView {
+    private final byte[] buffer;
+    private final int offset;
+    private final int length;
+    private final long time;
+    private final String source;
+    private final PacketBuffer owner; // null if buffer is not pooled
+
+    /**
+     * Make a view of length bytes of buffer, starting at offset
+     * @param time Reception time (NanoClock nanoseconds)
+     * @param source Name of the packet source (may be null)
+     */
+    public PacketView(byte[] buffer, int offset, int length,
+		      long time, String source) {
+	this(buffer, offset, length, time, source, null);
+    }
+
+    /**
+     * Make a view of all of packet
+     * @param time Reception time (NanoClock nanoseconds)
+     * @param source Name of the packet source (may be null)
+     */
+    public PacketView(PacketBuffer packet, long time, String source) {
+	this(packet.getData(), 0, packet.length(), time, source, packet);
+    }
+
+    private PacketView(byte[] buffer, int offset, int length,
+		       long time, String source, PacketBuffer owner) {
+	if (offset < 0 || length < 0 || offset + length > buffer.length)
+	    throw new ArrayIndexOutOfBoundsException(
+		"Cannot view " + length + " bytes at offset " + offset +
+		" of a " + buffer.length + " byte array");
+	this.buffer = buffer;
+	this.offset = offset;
+	this.length = length;
+	this.time = time;
+	this.source = source;
+	this.owner = owner;
+    }
+
+    /**
+     * Make a view of all of packet, received now
+     */
+    public static PacketView wrap(byte[] packet) {
+	return new PacketView(packet, 0, packet.length, NanoClock.now(), null);
+    }
+
+    /**
+     * @return The backing array. Do not modify it.
+     */
+    public byte[] buffer() {
+	return buffer;
+    }
+
+    /**
+     * @return Offset of the first byte of this view in buffer()
+     */
+    public int offset() {
+	return offset;
+    }
+
+    public int length() {
+	return length;
+    }
+
+    /**
+     * @return Reception time, in NanoClock nanoseconds
+     */
+    public long time() {
+	return time;
+    }
+
+    /**
+     * @return Reception time, in milliseconds since the epoch
+     */
+    public long millis() {
+	return NanoClock.toMillis(time);
+    }
+
+    /**
+     * @return Name of the packet source this packet came from, or null
+     */
+    public String source() {
+	return source;
+    }
+
+    /**
+     * @return The pooled buffer backing this view, or null
+     */
+    public PacketBuffer getPacketBuffer() {
+	return owner;
+    }
+
+    /**
+     * @return Byte i of this view, as an unsigned value
+     */
+    public int get(int i) {
+	if (i < 0 || i >= length)
+	    throw new ArrayIndexOutOfBoundsException(i);
+	return buffer[offset + i] & 0xff;
+    }
+
+    /**
+     * @return A view of length bytes of this view, starting at from.
+     *   It shares this view's array, time and source.
+     */
+    public PacketView slice(int from, int length) {
+	if (from < 0 || length < 0 || from + length > this.length)
+	    throw new ArrayIndexOutOfBoundsException(
+		"Cannot slice " + length + " bytes at offset " + from +
+		" of a " + this.length + " byte view");
+	return new PacketView(buffer, offset + from, length, time, source, owner);
+    }
+
+    /**
+     * @return A view of the bytes of this view after the first from
+     */
+    public PacketView slice(int from) {
+	return slice(from, length - from);
+    }
+
+    /**
+     * @return Whether this view covers all of its backing array
+     */
+    public boolean isWhole() {
+	return offset == 0 && length == buffer.length;
+    }
+
+    /**
+     * @return The bytes of this view as a byte[]: the backing array itself
+     *   if the view covers all of it (see <code>buffer</code>), a copy
+     *   otherwise
+     */
+    public byte[] toPacket() {
+	return isWhole() ? buffer : toByteArray();
+    }
+
+    /**
+     * @return A newly allocated copy of the bytes of this view
+     */
+    public byte[] toByteArray() {
+	byte[] copy = new byte[length];
+	System.arraycopy(buffer, offset, copy, 0, length);
+	return copy;
+    }
+
+    /**
+     * Keep this view valid after the call that received it returns (until
+     * a matching <code>release</code>). Does nothing for unpooled views.
+     * @return this view
+     */
+    public PacketView retain() {
+	if (owner != null)
+	    owner.retain();
+	return this;
+    }
+
+    /**
+     * Drop a reference to the view's buffer: one taken with
+     * <code>retain</code>, or the one returned by
+     * <code>PacketSource.readPacketView</code>
+     */
+    public void release() {
+	if (owner != null)
+	    owner.release();
+    }
+}
@@ -0,0 +1,19 @@
+package net.tinyos.packet;
+
+/**
+ * Receives the outcome of packets written with
+ * <code>Packetizer.writePacket(byte[], PacketWriteListener)</code>.
+ *
+ * Listeners are invoked from the Packetizer's internal threads and
+ * must not block.
+ */
+public interface PacketWriteListener {
+    /**
+     * Called once when a packet write completes
+     * @param packet The packet that was written
+     * @param acknowledged true if the mote acknowledged the packet, false
+     *   if it was not acknowledged after all retries or the source was
+     *   closed
+     */
+    public void packetWritten(byte[] packet, boolean acknowledged);
+}
@@ -0,0 +1,137 @@
+package net.tinyos.packet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Outbound packet queue of a PhoenixSource, drained by its own thread.
+ * Queued packets are written in batches: a Packetizer with a send window
+ * gets the whole batch at once (see Packetizer.writePackets), other
+ * sources get the packets one at a time.
+ */
+class PacketWriter implements Runnable {
+    final static int QUEUE_SIZE = 1024;
+
+    final static int MAX_BATCH = 32;
+
+    private static class Pending implements PacketWriteListener {
+	final byte[] packet;
+	final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+
+	Pending(byte[] packet) {
+	    this.packet = packet;
+	}
+
+	public void packetWritten(byte[] packet, boolean acknowledged) {
+	    result.complete(acknowledged);
+	}
+    }
+
+    private final PhoenixSource phoenix;
+    private final BlockingQueue<Pending> queue =
+	new ArrayBlockingQueue<Pending>(QUEUE_SIZE);
+    private final Thread thread;
+    // Guarded by this, so that no packet is queued once shutdown has
+    // drained the queue
+    private volatile boolean running = true;
+
+    PacketWriter(PhoenixSource phoenix) {
+	this.phoenix = phoenix;
+	thread = new Thread(this);
+	thread.setName(phoenix.getPacketSource().getName() + "; PhoenixSource writer");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /**
+     * Queue packet for writing
+     * @return The outcome of the write (see PhoenixSource.writePacketAsync)
+     */
+    CompletableFuture<Boolean> write(byte[] packet) {
+	Pending p = new Pending(packet);
+	boolean closed, full = false;
+
+	synchronized (this) {
+	    closed = !running;
+	    if (!closed)
+		full = !queue.offer(p);
+	}
+	if (closed)
+	    p.result.completeExceptionally(new IOException("closed"));
+	else if (full)
+	    p.result.completeExceptionally(new IOException("outbound queue full"));
+	return p.result;
+    }
+
+    /**
+     * Stop the writer thread, failing all queued packets
+     */
+    void shutdown() {
+	synchronized (this) {
+	    running = false;
+	}
+	thread.interrupt();
+	failQueued();
+    }
+
+    private void failQueued() {
+	Pending p;
+	while ((p = queue.poll()) != null)
+	    p.result.completeExceptionally(new IOException("closed"));
+    }
+
+    public void run() {
+	ArrayList<Pending> batch = new ArrayList<Pending>(MAX_BATCH);
+	byte[][] packets = new byte[MAX_BATCH][];
+	PacketWriteListener[] listeners = new PacketWriteListener[MAX_BATCH];
+
+	while (running) {
+	    try {
+		batch.add(queue.take());
+	    }
+	    catch (InterruptedException e) {
+		continue;
+	    }
+	    queue.drainTo(batch, MAX_BATCH - 1);
+
+	    try {
+		phoenix.awaitStartup();
+		PacketSource source = phoenix.getPacketSource();
+
+		if (source instanceof Packetizer) {
+		    int n = batch.size();
+		    for (int i = 0; i < n; i++) {
+			packets[i] = batch.get(i).packet;
+			listeners[i] = batch.get(i);
+		    }
+		    ((Packetizer)source).writePackets(packets, listeners, n);
+		}
+		else {
+		    for (Pending p : batch)
+			p.result.complete(source.writePacket(p.packet));
+		}
+	    }
+	    catch (IOException e) {
+		fail(batch, e);
+	    }
+	    catch (RuntimeException e) {
+		// A misbehaving source must not kill the writer thread
+		fail(batch, e);
+	    }
+	    batch.clear();
+	    Arrays.fill(packets, null);
+	    Arrays.fill(listeners, null);
+	}
+	failQueued();
+    }
+
+    private static void fail(ArrayList<Pending> batch, Exception e) {
+	// Packets that were written are already complete
+	for (Pending p : batch)
+	    p.result.completeExceptionally(e);
+    }
+}
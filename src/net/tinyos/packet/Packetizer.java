@@ -31,11 +31,10 @@
 package net.tinyos.packet;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import net.tinyos.message.LowlevelTimeSyncMessage;
-import net.tinyos.message.SerialPacket;
 import net.tinyos.util.*;
 
 /**
@@ -90,8 +89,16 @@ public class Packetizer extends AbstractSource implements Runnable, TimestampedP
 
   final static int MTU = 256;
 
+  // Ack timeouts adapt to the measured round-trip time (see
+  // RttEstimator), starting at ACK_TIMEOUT and never exceeding it
   final static int ACK_TIMEOUT = 1000; // in milliseconds
 
+  final static int MIN_ACK_TIMEOUT = 20; // in milliseconds
+
+  final static int MAX_RETRIES = 25;
+
+  final static int MAX_SEND_WINDOW = 128;
+
   final static int P_ACK = Serial.SERIAL_PROTO_ACK;
 
   final static int P_PACKET_ACK = Serial.SERIAL_PROTO_PACKET_ACK;
@@ -102,25 +109,42 @@ public class Packetizer extends AbstractSource implements Runnable, TimestampedP
 
   private ByteSource io;
 
-  private boolean inSync;
+  // Raw bytes are read from io in chunks of up to READ_BUFFER_SIZE bytes
+  // (except for event-driven byte sources, which push them to decoder)
+  final static int READ_BUFFER_SIZE = 4096;
+
+  private byte[] readBuffer = new byte[READ_BUFFER_SIZE];
 
-  private byte[] receiveBuffer = new byte[MTU];
+  private Decoder decoder = new Decoder();
 
   private int seqNo;
 
+  // Default receive queue sizes. Stale acks are useless, so the ack
+  // queue is small and always drops the oldest entries.
+  final static int RECEIVE_QUEUE_SIZE = 1024;
+
+  final static int ACK_QUEUE_SIZE = 16;
+
   // Packets are received by a separate thread and placed in a
   // per-packet-type queue. If received[x] is null, then x is an
   // unknown protocol (but P_UNKNOWN and P_PACKET_ACK are handled
-  // specially)
+  // specially). There is no reader thread for event-driven byte
+  // sources (see IOEngine).
   private Thread reader;
 
-  private LinkedList[] received;
-  
-  private LinkedList<Long>[] receivedTimes;
+  private PacketRing[] received;
   
   private long lastTimestamp=0;
   
-  private boolean running=true;
+  private volatile boolean running=true;
+
+  // Acknowledged packets in flight, when pipelined sends are enabled
+  // (see setSendWindow). null for stop-and-wait.
+  private SendWindow sendWindow;
+
+  private RttEstimator rtt = new RttEstimator(ACK_TIMEOUT, MIN_ACK_TIMEOUT, ACK_TIMEOUT);
+
+  private volatile int maxRetries = MAX_RETRIES;
   
   /**
    * Packetizers are built using the makeXXX methods in BuildSource
@@ -128,42 +152,133 @@ public class Packetizer extends AbstractSource implements Runnable, TimestampedP
   Packetizer(String name, ByteSource io) {
     super(name);
     this.io = io;
-    inSync = false;
     seqNo = 13;
-    reader = new Thread(this);
-    received = new LinkedList[256];
-    received[P_ACK] = new LinkedList();
-    received[P_PACKET_NO_ACK] = new LinkedList();
-    
-    receivedTimes = new LinkedList[256];
-    receivedTimes[P_ACK] = new LinkedList<Long>();
-    receivedTimes[P_PACKET_NO_ACK] = new LinkedList<Long>();
-    
-    // reader thread name
-    this.reader.setName(name + "; Packetizer");
+    received = new PacketRing[256];
+    received[P_ACK] = new PacketRing(ACK_QUEUE_SIZE, PacketRing.Overflow.DROP_OLDEST);
+    received[P_PACKET_NO_ACK] = new PacketRing(RECEIVE_QUEUE_SIZE, PacketRing.Overflow.DROP_OLDEST);
+    if (io instanceof NioByteSource) {
+      ((NioByteSource) io).setSink(decoder);
+    }
+  }
+
+  /**
+   * Set the size and overflow policy of the received packet queue. Must
+   * be called before the packetizer is opened.
+   * With an event-driven byte source, BLOCK stalls every source sharing
+   * its IOEngine thread while the queue is full.
+   * @param capacity Maximum number of queued packets
+   * @param overflow What to do with packets received when the queue is full
+   */
+  synchronized public void setReceiveQueue(int capacity, PacketRing.Overflow overflow) {
+    if (opened) {
+      throw new IllegalStateException("packetizer already started");
+    }
+    received[P_PACKET_NO_ACK] = new PacketRing(capacity, overflow);
+  }
+
+  /**
+   * Allow up to window acknowledged packets to be in flight at once.
+   * Each packet gets its own sequence number, and acks are matched in
+   * any order. The default (1) is the standard stop-and-wait protocol.
+   * Must be called before the packetizer is opened.
+   * Note that not all mote serial stacks can buffer more than one
+   * incoming packet; packets they drop are retransmitted after the
+   * ack timeout.
+   * @param window Maximum number of unacknowledged packets (1 to 128)
+   */
+  synchronized public void setSendWindow(int window) {
+    if (opened) {
+      throw new IllegalStateException("packetizer already started");
+    }
+    if (window < 1 || window > MAX_SEND_WINDOW) {
+      throw new IllegalArgumentException("bad send window " + window);
+    }
+    sendWindow = window > 1 ? new SendWindow(this, window) : null;
+  }
+
+  /**
+   * @return The maximum number of acknowledged packets in flight
+   */
+  public int getSendWindow() {
+    return sendWindow != null ? sendWindow.getSize() : 1;
+  }
+
+  /**
+   * @return The round-trip time estimator that sets the ack timeout
+   */
+  public RttEstimator getRttEstimator() {
+    return rtt;
+  }
+
+  /**
+   * Set how many times an acknowledged packet is sent before giving up
+   * @param retries Maximum number of transmissions (default 25)
+   */
+  public void setMaxRetries(int retries) {
+    if (retries < 1) {
+      throw new IllegalArgumentException("bad retry count " + retries);
+    }
+    maxRetries = retries;
+  }
+
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * @return Number of received packets discarded because the receive
+   *   queue was full
+   */
+  public long getDroppedPackets() {
+    return received[P_PACKET_NO_ACK].getDropped();
   }
 
   synchronized public void open(Messenger messages) throws IOException {
     super.open(messages);
-    if (!reader.isAlive()) {
+    if (!(io instanceof NioByteSource) && (reader == null || !reader.isAlive())) {
+      reader = new Thread(this);
+      reader.setName(name + "; Packetizer");
       reader.start();
     }
   }
 
   protected void openSource() throws IOException {
+    if (!running) {
+      // Reopened after a close: the queues and window were shut down
+      running = true;
+      received[P_ACK] = new PacketRing(ACK_QUEUE_SIZE, PacketRing.Overflow.DROP_OLDEST);
+      PacketRing packets = received[P_PACKET_NO_ACK];
+      received[P_PACKET_NO_ACK] = new PacketRing(packets.getCapacity(), packets.getOverflow());
+      if (sendWindow != null) {
+        sendWindow = new SendWindow(this, sendWindow.getSize());
+      }
+    }
+    decoder.reset();
     io.open();
   }
 
+  // Reading failed: wake up anyone waiting for a packet (they'll get an
+  // IOException and close this packetizer)
+  private void readFailed() {
+    received[P_ACK].close();
+    received[P_PACKET_NO_ACK].close();
+  }
+
   protected void closeSource() {
       // close all running threads
       this.running=false;
       
       io.close();
+      received[P_ACK].close();
+      received[P_PACKET_NO_ACK].close();
+      if (sendWindow != null) {
+        sendWindow.close();
+      }
             
       /**
        * Try to close running thread here
        */
-      while (this.reader.isAlive()) {
+      while (reader != null && reader.isAlive() && reader != Thread.currentThread()) {
           synchronized (this.reader) {
               this.reader.notify();
               this.reader.notifyAll();
@@ -179,53 +294,32 @@ public class Packetizer extends AbstractSource implements Runnable, TimestampedP
 
   protected byte[] readProtocolPacket(int packetType, long deadline)
       throws IOException {
-    LinkedList inPackets = received[packetType];
-    LinkedList<Long> inPacketsTimes = receivedTimes[packetType];
-    
-    // Wait for a packet on inPackets
-    synchronized (inPackets) {
-        // if inPackets is empty, clean received times to fix possible
-        // problems with synchronization
-        synchronized(inPacketsTimes){
-            if (inPackets.isEmpty()){
-                inPacketsTimes.clear();
-            }
-        }
-        
-      while (inPackets.isEmpty()) {
-        long now = System.currentTimeMillis();
-        if (deadline != 0 && now >= deadline) {
-          return null;
-        }
-        try {
-          inPackets.wait(deadline != 0 ? deadline - now : 0);
-        } catch (InterruptedException e) {
-          throw new IOException("interrupted");
-        }
+    PacketRing inPackets = received[packetType];
+    byte[] packet = inPackets.take(deadline);
+
+    if (packet != null) {
+      if (packetType == P_PACKET_NO_ACK) {
+        this.lastTimestamp = inPackets.getTakenTime();
       }
-      
-      if (inPacketsTimes.isEmpty()==false) this.lastTimestamp = inPacketsTimes.removeFirst();
-      return (byte[]) inPackets.removeFirst();
     }
+    return packet;
   }
 
   // Place a packet in its packet queue, or reject unknown packet
-  // types (which don't have a queue)
+  // types (which don't have a queue). The queue takes over the
+  // reference to packet.
   // 
-  // time critical place, add time information about packet here for each packet
-  // queueing could mallform packet arrival times
-  protected void pushProtocolPacket(int packetType, byte[] packet) {
-    LinkedList inPackets = received[packetType];
-    LinkedList<Long> inPacketsTime = receivedTimes[packetType];
+  // time is the arrival time of the packet's first sync byte (NanoClock)
+  protected void pushProtocolPacket(int packetType, PacketBuffer packet, long time) {
+    PacketRing inPackets = received[packetType];
     if (inPackets != null) {
-      synchronized (inPackets) {
-        inPacketsTime.add(System.currentTimeMillis());
-        inPackets.add(packet);
-        inPackets.notify();
-      }
-    } else if (packetType != P_UNKNOWN) {
+      inPackets.put(packet, time);
+      return;
+    }
+    packet.release();
+    if (packetType != P_UNKNOWN) {
       try {
-        writeFramedPacket(P_UNKNOWN, packetType, ackPacket, 0);
+        writeReply(P_UNKNOWN, packetType);
       } catch (IOException e) {
       }
       message(name + ": ignoring unknown packet type 0x"
@@ -239,33 +333,160 @@ public class Packetizer extends AbstractSource implements Runnable, TimestampedP
     for (;;) {
       byte[] packet = readProtocolPacket(P_PACKET_NO_ACK, 0);
       if (packet.length >= 1) {
+        // The caller keeps the array, so its buffer is never recycled
         return packet;
       }
     }
   }
 
+  /**
+   * Read a packet without copying it out of its (pooled) receive buffer
+   */
+    @Override
+  public PacketBuffer readPacketBuffer() throws IOException {
+    failIfClosed();
+
+    try {
+      PacketRing inPackets = received[P_PACKET_NO_ACK];
+      for (;;) {
+        byte[] packet = readProtocolPacket(P_PACKET_NO_ACK, 0);
+        PacketBuffer buffer = inPackets.getTakenBuffer();
+        if (buffer == null) {
+          buffer = PacketBuffer.wrap(packet);
+        }
+        if (packet.length >= 1) {
+          return buffer;
+        }
+        buffer.release();
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Write a packet. With a send window larger than 1, concurrent writers
+   * do not wait for each other's acks.
+   */
+    @Override
+  public boolean writePacket(byte[] packet) throws IOException {
+    SendWindow window = sendWindow;
+    if (window == null) {
+      return super.writePacket(packet);
+    }
+
+    failIfClosed();
+    try {
+      return window.write(check(packet));
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Write a packet without waiting for its ack. With a send window
+   * larger than 1, this only waits for room in the window; otherwise it
+   * is the same as writePacket.
+   * @param packet Packet to write (same format as writePacket)
+   * @param listener Told whether the packet was acknowledged (may be null)
+   */
+  public void writePacket(byte[] packet, PacketWriteListener listener)
+      throws IOException {
+    SendWindow window = sendWindow;
+    if (window == null) {
+      boolean acked = writePacket(packet);
+      if (listener != null) {
+        listener.packetWritten(packet, acked);
+      }
+      return;
+    }
+
+    failIfClosed();
+    try {
+      window.write(check(packet), listener);
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Write several packets without waiting for their acks. With a send
+   * window larger than 1, the frames that fit in the window are handed to
+   * the byte source in a single write; otherwise packets are written one
+   * at a time, as by writePacket.
+   * @param packets Packets to write (same format as writePacket)
+   * @param listeners listeners[i] is told whether packets[i] was
+   *   acknowledged (entries may be null)
+   * @param count Number of packets to write
+   */
+  public void writePackets(byte[][] packets, PacketWriteListener[] listeners,
+      int count) throws IOException {
+    SendWindow window = sendWindow;
+    if (window == null) {
+      for (int i = 0; i < count; i++) {
+        writePacket(packets[i], listeners[i]);
+      }
+      return;
+    }
+
+    failIfClosed();
+    try {
+      for (int i = 0; i < count; i++) {
+        check(packets[i]);
+      }
+      window.write(packets, listeners, count);
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  // Send one copy of an ack-ed packet with sequence number seq
+  // (interceptors run with the encoder locked, right before escaping)
+  void writeAckedFrame(int seq, byte[] packet) throws IOException {
+    Escaper buffer = encoder;
+
+    synchronized (buffer) {
+      buffer.reset();
+      interceptSend(packet);
+      encodeFramedPacket(buffer, P_PACKET_ACK, seq, packet, packet.length);
+      writeFrames(buffer);
+    }
+  }
+
   // Write an ack-ed packet
     @Override
   protected boolean writeSourcePacket(byte[] packet) throws IOException {
-    for (int retries = 0; retries < 25; retries++) {
-      preSendSerialPacket(packet);
-      writeFramedPacket(P_PACKET_ACK, ++seqNo, packet, packet.length);
+    for (int retries = 0; retries < maxRetries; retries++) {
+      long sent = System.nanoTime();
+      writeAckedFrame(++seqNo, packet);
+
+      long deadline = System.currentTimeMillis() + rtt.getTimeout();
 
-      long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+      // Skip acks that arrived too late for an earlier transmission
+      byte[] ack;
+      do {
+        ack = readProtocolPacket(P_ACK, deadline);
+      } while (ack != null && (ack.length == 0 || ack[0] != (byte) seqNo));
 
-      byte[] ack = readProtocolPacket(P_ACK, deadline);
       if (ack == null) {
         if (DEBUG) {
           message(name + ": ACK timed out");
         }
+        rtt.timedOut();
         continue;
       }
-      if (ack[0] == (byte) seqNo) {
-        if (DEBUG) {
-          message(name + ": Rcvd ACK");
-        }
-        return true;
+      if (DEBUG) {
+        message(name + ": Rcvd ACK");
       }
+      // Karn's rule: only time packets that were sent once
+      if (retries == 0) {
+        rtt.sample(System.nanoTime() - sent);
+      }
+      return true;
     }
 
     return false;
@@ -273,168 +494,185 @@ public class Packetizer extends AbstractSource implements Runnable, TimestampedP
 
   static private byte ackPacket[] = new byte[0];
 
-  /**
-   * Called just before framing and escaping packet before sending.
-   * Is utilized for precise packet UART-to-node time synchronization.
-   * 
-   * Warning! Abstraction violation!!!
-   * 1. packetizer knows that serial packet exists and may be transported in byte[]
-   * 2. packetizer knows that serial packet can contain LowlevelTimeSyncMessage and 
-   *    behaves specifically if this message is detected (current time+offset).
-   * 
-   * This should be done in different manner. Current state is quick fix, but clean
-   * way would require to extend basic message type to include callback to class
-   * that takes care about this pre-sending modifications. Since here is no Msg instance
-   * anymore, it would be needed to add some meta data for write packet.
-   * 
-   * Alternatively, there can be another write packet method that could notify some
-   * class just before packet sending.
-   * 
-   * Another modifications would be needed to pass packet type (e.g. SerialPacket)
-   * to packetizer along with byte[] packet.
-   * @param packet 
-   */
-  private void preSendSerialPacket(byte[] packet){
-      try{
-        // expect serial packet here
-        if (packet[0]!=Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID){
-            return;
-        }
-          
-        // serial packet will be initialized with packet as backing store
-        // => modifs made to tmp will be reflected to byte[] packet
-        // first element is SerialPacket AM type, thus real serial packet starts 
-        // at packet[1]
-        SerialPacket tmp = new SerialPacket(packet, 1);
-        
-        // check if it is low level time sync message
-        if (LowlevelTimeSyncMessage.AM_TYPE!=tmp.amType()){
-            return;
-        }
-        
-        // it is llts message, set correct time
-        // instantiate message with data 
-        // offset_data(0) is static method -> no base_offset here. Need to take into account now
-        LowlevelTimeSyncMessage lltsm = new LowlevelTimeSyncMessage(tmp.dataGet(), tmp.baseOffset()+tmp.offset_data(0), tmp.size_header_length());
-
-        // set correct time with offset added
-        long curTime = System.currentTimeMillis() + lltsm.get_offset();
-
-        // this will change byte[] packet directly since lltsm uses SerialPacket's data
-        // as backing store and same does SerialPacket with byte[] packet
-        lltsm.set_low((curTime & 0xFFFFFFFF));
-        lltsm.set_high((curTime >> 32) & 0xFFFFFFFF);
-      } catch(Exception e){
-          message(name + ": problem with pre-send packet modiffication: " + e.getMessage());
-      }
+  // Called just before framing and escaping packet: let the send
+  // interceptors for its AM type patch it (see SendInterceptors)
+  private void interceptSend(byte[] packet) {
+    try {
+      SendInterceptors.intercept(packet);
+    } catch (RuntimeException e) {
+      message(name + ": send interceptor failed: " + e);
+    }
   }
-  
+
     @Override
   public void run() {
     try {
 System.err.println("Packetizer start | " + this.getName());            
-      for (;this.running;) {
-        byte[] packet = readFramedPacket();
-        if (running==false || packet==null) return;
-        
-        int packetType = packet[0] & 0xff;
-        int pdataOffset = 1;
-
-        if (packetType == P_PACKET_ACK) {
-          // send ack
-          writeFramedPacket(P_ACK, packet[1], ackPacket, 0);
-          // And merge with un-acked packets
-          packetType = P_PACKET_NO_ACK;
-          pdataOffset = 2;
-        }
-        int dataLength = packet.length - pdataOffset;
-        byte[] dataPacket = new byte[dataLength];
-        System.arraycopy(packet, pdataOffset, dataPacket, 0, dataLength);
-        pushProtocolPacket(packetType, dataPacket);
+      while (running) {
+        int count = io.read(readBuffer, 0, readBuffer.length);
+        decoder.bytesReceived(readBuffer, 0, count, NanoClock.now());
       }
 System.err.println("Packetizer finish | " + this.getName());       
     } catch (IOException e) {
+      if (running) {
+        readFailed();
+      }
     }
   }
 
-  // Read system-level packet. If inSync is false, we currently don't
-  // have sync
-  private byte[] readFramedPacket() throws IOException {
-    int count = 0;
-    boolean escaped = false;
-
-    for (;this.running;) {
-      if (!inSync) {
-        message(name + ": resynchronising");
-        // re-synchronise
-        while (io.readByte() != SYNC_BYTE)
-          ;
-        inSync = true;
-        count = 0;
-        escaped = false;
-      }
+  // A frame with a valid crc arrived: bytes 0..length-1 of frame (the
+  // decoder's buffer, without the crc). time is the arrival time of its
+  // first sync byte (NanoClock). The packet data is copied, once, into a
+  // pooled PacketBuffer.
+  private void frameReceived(byte[] frame, int length, long time) throws IOException {
+    if (!running) {
+      return;
+    }
 
-      if (count >= MTU) {
-        // Packet too long, give up and try to resync
-        message(name + ": packet too long");
-        inSync = false;
-        continue;
+    int packetType = frame[0] & 0xff;
+    int pdataOffset = 1;
+
+    if (packetType == P_ACK && sendWindow != null) {
+      if (length >= 2) {
+        sendWindow.acked(frame[1] & 0xff);
       }
+      return;
+    }
+    if (packetType == P_PACKET_ACK) {
+      // send ack
+      writeReply(P_ACK, frame[1]);
+      // And merge with un-acked packets
+      packetType = P_PACKET_NO_ACK;
+      pdataOffset = 2;
+    }
+    int dataLength = length - pdataOffset;
+    PacketBuffer dataPacket = PacketBuffer.allocate(dataLength);
+    System.arraycopy(frame, pdataOffset, dataPacket.getData(), 0, dataLength);
+    pushProtocolPacket(packetType, dataPacket, time);
+  }
 
-      byte b = io.readByte();
-      if (escaped) {
-        if (b == SYNC_BYTE) {
-          // sync byte following escape is an error, resync
-          message(name + ": unexpected sync byte");
-          inSync = false;
-          continue;
-        }
-        b ^= 0x20;
-        escaped = false;
-      } else if (b == ESCAPE_BYTE) {
-        escaped = true;
-        continue;
-      } else if (b == SYNC_BYTE) {
-        if (count < 4) {
-          // too-small frames are ignored
+  // Push-style frame decoder: raw bytes go in, in chunks of any size, and
+  // frames with a valid crc come out (to frameReceived). Bytes come from
+  // the reader thread, or straight from an event-driven byte source.
+  class Decoder implements ByteSink {
+    private byte[] frame = new byte[MTU];
+
+    private int count;
+
+    // If inSync is false, we currently don't have sync
+    private boolean inSync, escaped, resyncReported;
+
+    // Arrival time of the sync byte starting the current frame
+    private long frameTime;
+
+    void reset() {
+      inSync = false;
+      escaped = false;
+      resyncReported = false;
+      count = 0;
+    }
+
+    public void bytesReceived(byte[] in, int pos, int length, long time)
+        throws IOException {
+      int end = pos + length;
+
+      while (pos < end) {
+        if (!inSync) {
+          if (!resyncReported) {
+            message(name + ": resynchronising");
+            resyncReported = true;
+          }
+          // re-synchronise
+          while (pos < end && in[pos] != SYNC_BYTE)
+            pos++;
+          if (pos == end) {
+            return;
+          }
+          pos++;
+          frameTime = time;
+          inSync = true;
+          resyncReported = false;
           count = 0;
+          escaped = false;
           continue;
         }
-        byte[] packet = new byte[count - 2];
-        System.arraycopy(receiveBuffer, 0, packet, 0, count - 2);
 
-        int readCrc = (receiveBuffer[count - 2] & 0xff)
-            | (receiveBuffer[count - 1] & 0xff) << 8;
-        int computedCrc = Crc.calc(packet, packet.length);
-
-        if (DEBUG) {
-          System.err.println("received: ");
-          Dump.printPacket(System.err, packet);
-          System.err.println(" rcrc: " + Integer.toHexString(readCrc)
-              + " ccrc: " + Integer.toHexString(computedCrc));
+        if (count >= MTU) {
+          // Packet too long, give up and try to resync
+          message(name + ": packet too long");
+          inSync = false;
+          continue;
         }
 
-        if (readCrc == computedCrc) {
-          return packet;
-        } else {
-          message(name + ": bad packet");
-          /*
-           * We don't lose sync here. If we did, garbage on the line at startup
-           * will cause loss of the first packet.
-           */
+        byte b = in[pos++];
+        if (escaped) {
+          if (b == SYNC_BYTE) {
+            // sync byte following escape is an error, resync
+            message(name + ": unexpected sync byte");
+            inSync = false;
+            continue;
+          }
+          b ^= 0x20;
+          escaped = false;
+        } else if (b == ESCAPE_BYTE) {
+          escaped = true;
+          continue;
+        } else if (b == SYNC_BYTE) {
+          long start = frameTime;
+          int frameLength = count;
+
           count = 0;
+          frameTime = time;
+          if (frameLength < 4) {
+            // too-small frames are ignored
+            continue;
+          }
+
+          int readCrc = (frame[frameLength - 2] & 0xff)
+              | (frame[frameLength - 1] & 0xff) << 8;
+          int computedCrc = Crc.calc(frame, frameLength - 2);
+
+          if (DEBUG) {
+            System.err.println("received: ");
+            Dump.printPacket(System.err, frame, 0, frameLength - 2);
+            System.err.println(" rcrc: " + Integer.toHexString(readCrc)
+                + " ccrc: " + Integer.toHexString(computedCrc));
+          }
+
+          if (readCrc == computedCrc) {
+            frameReceived(frame, frameLength - 2, start);
+          } else {
+            message(name + ": bad packet");
+            /*
+             * We don't lose sync here. If we did, garbage on the line at startup
+             * will cause loss of the first packet.
+             */
+          }
           continue;
         }
+
+        frame[count++] = b;
       }
+    }
 
-      receiveBuffer[count++] = b;
+    public void sourceFailed(IOException e) {
+      message(name + ": " + e.getMessage());
+      readFailed();
     }
-    
-    return null;
   }
 
     @Override
     public long getLastTimestamp() {
+        return NanoClock.toMillis(this.lastTimestamp);
+    }
+
+    /**
+     * @return Arrival time of the first (sync) byte of the last packet
+     *   returned by readPacket, in NanoClock nanoseconds. Bytes are read
+     *   in chunks, so this is the time the chunk holding that byte was read.
+     */
+    @Override
+    public long getLastTimestampNanos() {
         return this.lastTimestamp;
     }
 
@@ -443,18 +681,39 @@ System.err.println("Packetizer finish | " + this.getName());
         return true;
     }
 
-  // Class to build a framed, escaped and crced packet byte stream
+  // Class to build a framed, escaped and crced packet byte stream.
+  // The same Escaper (and buffer) is reused for every packet, and
+  // several frames can be built back to back for a single write.
   static class Escaper {
     byte[] escaped;
 
+    ByteBuffer frame;
+
     int escapePtr;
 
     int crc;
 
-    // We're building a length-byte packet
     Escaper(int length) {
+      allocate(length);
+    }
+
+    private void allocate(int length) {
       escaped = new byte[2 * length];
+      frame = ByteBuffer.wrap(escaped);
+    }
+
+    // Discard any frames built so far
+    void reset() {
       escapePtr = 0;
+    }
+
+    // We're building a length-byte packet
+    void start(int length) {
+      if (escaped.length < escapePtr + 2 * length) {
+        byte[] old = escaped;
+        allocate((escapePtr + 1) / 2 + length);
+        System.arraycopy(old, 0, escaped, 0, escapePtr);
+      }
       crc = 0;
       escaped[escapePtr++] = SYNC_BYTE;
     }
@@ -474,15 +733,41 @@ System.err.println("Packetizer finish | " + this.getName());
       }
     }
 
+    void nextBytes(byte[] packet, int offset, int count) {
+      byte[] out = escaped;
+      int ptr = escapePtr;
+
+      crc = Crc.calc(crc, packet, offset, count);
+      for (int end = offset + count; offset < end; offset++) {
+        byte b = packet[offset];
+        if (b == SYNC_BYTE || b == ESCAPE_BYTE) {
+          out[ptr++] = ESCAPE_BYTE;
+          out[ptr++] = (byte) (b ^ 0x20);
+        } else {
+          out[ptr++] = b;
+        }
+      }
+      escapePtr = ptr;
+    }
+
     void terminate() {
       escaped[escapePtr++] = SYNC_BYTE;
     }
+
+    // The encoded frame(s), from SYNC_BYTE to SYNC_BYTE
+    ByteBuffer frame() {
+      frame.clear();
+      frame.limit(escapePtr);
+      return frame;
+    }
   }
 
-  // Write a packet of type 'packetType', first byte 'firstByte'
-  // and bytes 2..'count'+1 in 'packet'
-  private synchronized void writeFramedPacket(int packetType, int firstByte,
-      byte[] packet, int count) throws IOException {
+  private final Escaper encoder = new Escaper(MTU + 6);
+
+  // Encode a packet of type 'packetType', first byte 'firstByte'
+  // and bytes 2..'count'+1 in 'packet' after any frames already in buffer
+  private void encodeFramedPacket(Escaper buffer, int packetType,
+      int firstByte, byte[] packet, int count) {
     if (DEBUG) {
       System.err.println("sending: ");
       Dump.printByte(System.err, packetType);
@@ -491,26 +776,77 @@ System.err.println("Packetizer finish | " + this.getName());
       System.err.println();
     }
 
-    Escaper buffer = new Escaper(count + 6);
-
+    buffer.start(count + 6);
     buffer.nextByte(packetType);
     buffer.nextByte(firstByte);
-    for (int i = 0; i < count; i++) {
-      buffer.nextByte(packet[i]);
-    }
+    buffer.nextBytes(packet, 0, count);
 
     int crc = buffer.crc;
     buffer.nextByte(crc & 0xff);
     buffer.nextByte(crc >> 8);
 
     buffer.terminate();
+  }
 
-    byte[] realPacket = new byte[buffer.escapePtr];
-    System.arraycopy(buffer.escaped, 0, realPacket, 0, buffer.escapePtr);
-
+  // Write the frames built in buffer
+  private void writeFrames(Escaper buffer) throws IOException {
     if (DEBUG) {
-      Dump.dump("encoded", realPacket);
+      Dump.printPacket(System.err, buffer.escaped, 0, buffer.escapePtr);
+      System.err.println();
+    }
+    io.writeBytes(buffer.frame());
+  }
+
+  // Write a packet of type 'packetType', first byte 'firstByte'
+  // and bytes 2..'count'+1 in 'packet'
+  // (locks the encoder, not this packetizer: acks are written by the
+  // reader thread, which close waits for)
+  private void writeFramedPacket(int packetType, int firstByte,
+      byte[] packet, int count) throws IOException {
+    Escaper buffer = encoder;
+
+    synchronized (buffer) {
+      buffer.reset();
+      encodeFramedPacket(buffer, packetType, firstByte, packet, count);
+      writeFrames(buffer);
+    }
+  }
+
+  // Frames written by the decoding thread (acks and unknown packet type
+  // replies) are built here, never in the shared encoder
+  private final Escaper replyEncoder = new Escaper(8);
+
+  // Write an empty reply of type 'packetType', first byte 'firstByte'
+  // (in the thread decoding frames). For event-driven sources this is the
+  // I/O thread: it must not wait for the encoder, which a writer thread
+  // may hold while waiting for the connection's output to drain, so the
+  // reply is framed in replyEncoder and queued directly on the
+  // connection (which never blocks the I/O thread). Stream sources have
+  // no I/O thread to stall, and their writes must not interleave.
+  private void writeReply(int packetType, int firstByte) throws IOException {
+    if (!(io instanceof NioByteSource)) {
+      writeFramedPacket(packetType, firstByte, ackPacket, 0);
+      return;
+    }
+    Escaper buffer = replyEncoder;
+    buffer.reset();
+    encodeFramedPacket(buffer, packetType, firstByte, ackPacket, 0);
+    writeFrames(buffer);
+  }
+
+  // Write count ack-ed packets, packets[i] with sequence number seqs[i],
+  // in a single write
+  void writeAckedFrames(int[] seqs, byte[][] packets, int count)
+      throws IOException {
+    Escaper buffer = encoder;
+
+    synchronized (buffer) {
+      buffer.reset();
+      for (int i = 0; i < count; i++) {
+        interceptSend(packets[i]);
+        encodeFramedPacket(buffer, P_PACKET_ACK, seqs[i], packets[i], packets[i].length);
+      }
+      writeFrames(buffer);
     }
-    io.writeBytes(realPacket);
   }
 }
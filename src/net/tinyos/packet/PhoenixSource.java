@@ -32,13 +32,14 @@ package net.tinyos.packet;
 
 import net.tinyos.util.*;
 import java.io.*;
-import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A PhoenixSource builds upon a PacketSource to provide the following
  * features:
- * - automatic reading and dispatching of packets (registerPacketListener
- *   and deregisterPacketListener)
+ * - automatic reading and dispatching of packets (registerPacketListener,
+ *   registerDispatchListener, registerAMListener and the corresponding
+ *   deregister methods)
  * - automatic source restarting (via setResurrection), off by default
  *
  * PhoenixSources are threads and hence need to be started. PhoenixSources
@@ -52,10 +53,18 @@ import java.util.*;
 public class PhoenixSource extends Thread implements PhoenixError {
     private PacketSource source;
     private Messenger messages;
-    private ArrayList<PacketListenerIF> listeners;
+    // Listeners for all packets, for packets by dispatch (first) byte, and
+    // for active messages by AM type (see append and remove)
+    private volatile PacketListenerIF[] listeners = new PacketListenerIF[0];
+    private volatile PacketListenerIF[][] dispatchListeners = new PacketListenerIF[256][];
+    private volatile PacketListenerIF[][] amListeners = new PacketListenerIF[256][];
     private boolean phoenixLike = true; // does it rise from the ashes?
     private boolean started;
     private PhoenixError errorHandler = this;
+    private PacketWriter writer; // created by first writePacketAsync
+    // Queue new listeners (see setListenerQueues) if listenerQueueSize > 0
+    private int listenerQueueSize;
+    private PacketRing.Overflow listenerQueueOverflow;
 
     protected void message(String s) {
 	if (messages != null)
@@ -89,7 +98,6 @@ public class PhoenixSource extends Thread implements PhoenixError {
     PhoenixSource(PacketSource source, Messenger messages) {
 	this.source = source;
 	this.messages = messages;
-	listeners = new ArrayList<PacketListenerIF>();
         
         // thread name
         this.setName(source.getName() + "; PhoenixSource");
@@ -102,6 +110,13 @@ public class PhoenixSource extends Thread implements PhoenixError {
      */
     synchronized public void shutdown() {
 	phoenixLike = false;
+	if (writer != null)
+	    writer.shutdown();
+	closeQueues(listeners);
+	for (int i = 0; i < 256; i++) {
+	    closeQueues(dispatchListeners[i]);
+	    closeQueues(amListeners[i]);
+	}
 	try {
 	    source.close();
 	    interrupt();
@@ -130,6 +145,33 @@ public class PhoenixSource extends Thread implements PhoenixError {
 	return source.writePacket(packet);
     }
 
+    /**
+     * Write a packet without waiting. Packets are queued (up to
+     * PacketWriter.QUEUE_SIZE) and written in order by a separate thread;
+     * consecutive queued packets are sent as a single batch when the
+     * packet source supports it (a Packetizer with a send window).
+     * @param packet Packet to write (same format as PacketSource)
+     * @return A future completed with the result writePacket would have
+     *   returned, or exceptionally with an IOException if the write failed,
+     *   the queue was full or this PhoenixSource was shut down
+     */
+    public CompletableFuture<Boolean> writePacketAsync(byte[] packet) {
+	PacketWriter w;
+
+	synchronized (this) {
+	    if (writer == null) {
+		if (!phoenixLike) {
+		    CompletableFuture<Boolean> closed = new CompletableFuture<Boolean>();
+		    closed.completeExceptionally(new IOException("closed"));
+		    return closed;
+		}
+		writer = new PacketWriter(this);
+	    }
+	    w = writer;
+	}
+	return w.write(packet);
+    }
+
     /**
      * Register a new packet listener
      * @param listener listener.packetReceived will be invoked for
@@ -138,52 +180,206 @@ public class PhoenixSource extends Thread implements PhoenixError {
      *   be invoked in the context of the PhoenixSource thread.
      */
     public void registerPacketListener(PacketListenerIF listener) {
-	listeners.add(listener);
+	PacketListenerIF l = queueIfRequested(listener);
+	synchronized (this) {
+	    listeners = append(listeners, l);
+	}
+    }
+
+    /**
+     * Register a new packet listener for packets whose first (dispatch)
+     * byte is dispatch, e.g., Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID for
+     * all active messages. The listener is not invoked for other packets.
+     * @param listener As for registerPacketListener(PacketListenerIF)
+     */
+    public void registerDispatchListener(PacketListenerIF listener, int dispatch) {
+	PacketListenerIF l = queueIfRequested(listener);
+	synchronized (this) {
+	    PacketListenerIF[][] table = dispatchListeners.clone();
+	    table[dispatch & 0xff] = append(table[dispatch & 0xff], l);
+	    dispatchListeners = table;
+	}
+    }
+
+    /**
+     * Register a new packet listener for active messages of AM type
+     * amType. The listener is not invoked for other packets.
+     * @param listener As for registerPacketListener(PacketListenerIF)
+     */
+    public void registerAMListener(PacketListenerIF listener, int amType) {
+	PacketListenerIF l = queueIfRequested(listener);
+	synchronized (this) {
+	    PacketListenerIF[][] table = amListeners.clone();
+	    table[amType & 0xff] = append(table[amType & 0xff], l);
+	    amListeners = table;
+	}
     }
 
     /**
-     * Remove a packet listener
+     * Run all listeners registered from now on with
+     * registerPacketListener(PacketListenerIF) (or registerDispatchListener,
+     * registerAMListener) in their own thread, as with the queued variant
+     * of registerPacketListener. With this set, the PhoenixSource thread
+     * only ever queues packets (unless a queue uses the BLOCK policy).
+     * @param capacity Maximum number of packets queued for each listener,
+     *   0 to go back to invoking listeners in the PhoenixSource thread
+     * @param overflow What to do when a listener's queue is full
+     */
+    public synchronized void setListenerQueues(int capacity, PacketRing.Overflow overflow) {
+	if (capacity < 0)
+	    throw new IllegalArgumentException("bad capacity " + capacity);
+	listenerQueueSize = capacity;
+	listenerQueueOverflow = overflow;
+    }
+
+    private synchronized PacketListenerIF queueIfRequested(PacketListenerIF listener) {
+	if (listenerQueueSize == 0)
+	    return listener;
+	return newQueue(listener, listenerQueueSize, listenerQueueOverflow);
+    }
+
+    private QueuedListener newQueue(PacketListenerIF listener, int capacity,
+				    PacketRing.Overflow overflow) {
+	QueuedListener queued =
+	    new QueuedListener(listener, capacity, overflow, source.getName());
+	queued.start();
+	return queued;
+    }
+
+    /**
+     * Register a new packet listener, run in its own thread. Packets are
+     * queued for the listener, so that it never holds up the PhoenixSource
+     * thread or the other listeners; when more than capacity packets are
+     * waiting, overflow decides which are dropped (with BLOCK, a full
+     * queue does hold up the PhoenixSource thread).
+     * @param listener As for registerPacketListener(PacketListenerIF)
+     * @param capacity Maximum number of packets queued for listener
+     * @param overflow What to do when listener's queue is full
+     * @return The listener's queue, for monitoring
+     */
+    public QueuedListener registerPacketListener(PacketListenerIF listener,
+						 int capacity,
+						 PacketRing.Overflow overflow) {
+	QueuedListener queued = newQueue(listener, capacity, overflow);
+	synchronized (this) {
+	    listeners = append(listeners, queued);
+	}
+	return queued;
+    }
+
+    /**
+     * Remove a packet listener registered with registerPacketListener
      * @param listener Listener to remove (if it was registered twice,
-     *   only one entry will be removed)
+     *   only one entry will be removed). Queued listeners are stopped once
+     *   they have processed the packets already queued for them.
+     */
+    public synchronized void deregisterPacketListener(PacketListenerIF listener) {
+	listeners = remove(listeners, listener);
+    }
+
+    /**
+     * Remove a packet listener registered with registerDispatchListener
+     * (see deregisterPacketListener)
      */
-    public void deregisterPacketListener(PacketListenerIF listener) {
-	listeners.remove(listener);
+    public synchronized void deregisterDispatchListener(PacketListenerIF listener,
+							int dispatch) {
+	PacketListenerIF[][] table = dispatchListeners.clone();
+	table[dispatch & 0xff] = remove(table[dispatch & 0xff], listener);
+	dispatchListeners = table;
+    }
+
+    /**
+     * Remove a packet listener registered with registerAMListener
+     * (see deregisterPacketListener)
+     */
+    public synchronized void deregisterAMListener(PacketListenerIF listener,
+						  int amType) {
+	PacketListenerIF[][] table = amListeners.clone();
+	table[amType & 0xff] = remove(table[amType & 0xff], listener);
+	amListeners = table;
+    }
+
+    // Listener arrays are replaced, never modified, so that dispatch
+    // needs no locking. Updates are made while locked.
+
+    private static PacketListenerIF[] append(PacketListenerIF[] list,
+						   PacketListenerIF listener) {
+	int n = list == null ? 0 : list.length;
+	PacketListenerIF[] newList = new PacketListenerIF[n + 1];
+
+	if (n > 0)
+	    System.arraycopy(list, 0, newList, 0, n);
+	newList[n] = listener;
+	return newList;
+    }
+
+    // Remove the first entry for listener (or for a queue feeding it)
+    // from list, stopping the queue if there is one. Returns the new list
+    // (null if empty)
+    private static PacketListenerIF[] remove(PacketListenerIF[] list,
+					     PacketListenerIF listener) {
+	if (list == null)
+	    return null;
+	for (int i = 0; i < list.length; i++) {
+	    PacketListenerIF l = list[i];
+	    if (l == listener || l instanceof QueuedListener &&
+		((QueuedListener)l).getListener() == listener) {
+		if (l instanceof QueuedListener)
+		    ((QueuedListener)l).close();
+		if (list.length == 1)
+		    return null;
+		PacketListenerIF[] newList = new PacketListenerIF[list.length - 1];
+		System.arraycopy(list, 0, newList, 0, i);
+		System.arraycopy(list, i + 1, newList, i, list.length - i - 1);
+		return newList;
+	    }
+	}
+	return list;
+    }
+
+    private static void closeQueues(PacketListenerIF[] list) {
+	if (list != null)
+	    for (PacketListenerIF l : list)
+		if (l instanceof QueuedListener)
+		    ((QueuedListener)l).close();
     }
 
     private void packetDipatchLoop() throws IOException {
-        // decide what to do depending on type of packet source
-        if (this.source instanceof TimestampedPacketSource){
-            final TimestampedPacketSource tSource = (TimestampedPacketSource) source;
-            // this packet source provides timestamping infos
-            for (;;) {
-                byte[] readPacket = tSource.readPacket();
-                long timestamp = tSource.getLastTimestamp();
-                
-                // if timestamp is null here, provide timing info here - source of time tick
-                timestamp = tSource.supportsTimestamping() ? timestamp : System.currentTimeMillis();
-                
-                // if timestamping is not supported - assign current timestamp
-                dispatch(readPacket, timestamp);
-                readPacket = null;
-            }
-        } else {           
-            // faster way than deciding instance everytime in loop, isn't it?
-            for (;;) {
-                dispatch(source.readPacket(), System.currentTimeMillis());
-            }
+        // Sources stamp views with their reception time (see
+        // TimestampedPacketSource.readPacketView)
+        for (;;) {
+            dispatch(source.readPacketView());
         }
     }
 
-    private void dispatch(byte[] packet) {
-        this.dispatch(packet, System.currentTimeMillis());
-    }
-    
-    private void dispatch(byte[] packet, long mili) {
+    // Listeners share packet; our reference is dropped once they all
+    // returned (see PacketListenerIF)
+    private void dispatch(PacketView packet) {
         try {
-            for (PacketListenerIF listener : listeners) {
-                listener.packetReceived(packet, mili);
+            deliver(listeners, packet);
+            if (packet.length() > 0) {
+                int dispatch = packet.get(0);
+                deliver(dispatchListeners[dispatch], packet);
+                if (dispatch == Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID &&
+                    packet.length() > SendInterceptors.TYPE_OFFSET) {
+                    deliver(amListeners[packet.get(SendInterceptors.TYPE_OFFSET)],
+                            packet);
+                }
+            }
+        } finally {
+            packet.release();
+        }
+    }
+
+    // An exception in one listener does not stop delivery to the others
+    private static void deliver(PacketListenerIF[] list, PacketView packet) {
+        if (list == null)
+            return;
+        for (int i = 0; i < list.length; i++) {
+            try {
+                list[i].packetReceived(packet);
+            } catch (Exception e) {
             }
-        } catch (Exception e) {
         }
     }
 
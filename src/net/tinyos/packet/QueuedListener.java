@@ -0,0 +1,199 @@
+package net.tinyos.packet;
+
+import java.io.IOException;
+import net.tinyos.util.NanoClock;
+
+/**
+ * A packet listener run in its own thread, fed by a bounded queue, so that
+ * a slow listener (e.g., a client whose tcp/ip peer stalls) holds up
+ * neither the PhoenixSource reader nor the other listeners. When the queue
+ * is full, its overflow policy decides which packets the listener loses.
+ *
+ * QueuedListeners are usually created by the queued variant of
+ * PhoenixSource.registerPacketListener, which returns them so that the
+ * listener's backlog (lag, drops) can be monitored. They can also be
+ * created, started and fed directly, by code relaying packets itself
+ * (e.g., net.tinyos.sf.SFListen).
+ */
+public final class QueuedListener implements PacketListenerIF, Runnable {
+    private final PacketListenerIF listener;
+    private final PacketRing queue;
+    private final String source;
+    private final Thread thread;
+
+    // Updated by the listener thread only
+    private volatile long delivered;
+    private volatile long failures;
+    private volatile long lag;
+    private volatile long maxLag;
+    private volatile long lastTaken; // when the listener last took a packet
+
+    /**
+     * Create a queued listener (see start)
+     * @param listener The listener packets are delivered to
+     * @param capacity Maximum number of waiting packets
+     * @param overflow What to do when capacity packets are waiting
+     * @param source Name of the packet source, for the delivered
+     *   PacketViews and the listener thread's name
+     */
+    public QueuedListener(PacketListenerIF listener, int capacity,
+			  PacketRing.Overflow overflow, String source) {
+	this.listener = listener;
+	this.source = source;
+	queue = new PacketRing(capacity, overflow);
+	thread = new Thread(this, source + "; listener " +
+			    listener.getClass().getName());
+	thread.setDaemon(true);
+    }
+
+    /**
+     * Start the listener thread
+     */
+    public void start() {
+	thread.start();
+    }
+
+    /**
+     * Stop accepting packets. The listener thread exits once it has
+     * delivered the queued packets.
+     */
+    public void close() {
+	queue.close();
+    }
+
+    public void packetReceived(byte[] packet) {
+	packetReceived(packet, System.currentTimeMillis());
+    }
+
+    public void packetReceived(byte[] packet, long mili) {
+	packetReceived(packet, mili, NanoClock.fromMillis(mili));
+    }
+
+    public void packetReceived(byte[] packet, long mili, long nanos) {
+	// Unpooled packets are newly allocated by their PacketSource, and
+	// hence can be queued as is
+	queue.put(packet, nanos);
+    }
+
+    public void packetReceived(PacketBuffer packet, long mili, long nanos) {
+	queue.put(packet.retain(), nanos);
+    }
+
+    public void packetReceived(PacketView packet) {
+	PacketBuffer buffer = packet.getPacketBuffer();
+	if (buffer != null && packet.isWhole())
+	    queue.put(buffer.retain(), packet.time());
+	else
+	    queue.put(packet.toPacket(), packet.time());
+    }
+
+    public void run() {
+	for (;;) {
+	    byte[] packet;
+	    try {
+		packet = queue.take(0);
+	    }
+	    catch (IOException e) {
+		return; // closed
+	    }
+
+	    PacketBuffer buffer = queue.getTakenBuffer();
+	    long time = queue.getTakenTime();
+	    lastTaken = NanoClock.now();
+	    PacketView view = buffer != null ?
+		new PacketView(buffer, time, source) :
+		new PacketView(packet, 0, packet.length, time, source);
+
+	    long l = NanoClock.now() - time;
+	    lag = l;
+	    if (l > maxLag)
+		maxLag = l;
+	    try {
+		listener.packetReceived(view);
+		delivered++;
+	    }
+	    catch (RuntimeException e) {
+		failures++;
+	    }
+	    finally {
+		view.release();
+	    }
+	}
+    }
+
+    /**
+     * @return The listener packets are delivered to
+     */
+    public PacketListenerIF getListener() {
+	return listener;
+    }
+
+    /**
+     * @return Number of packets waiting for the listener
+     */
+    public int getQueued() {
+	return queue.size();
+    }
+
+    /**
+     * @return Maximum number of packets waiting for the listener
+     */
+    public int getCapacity() {
+	return queue.getCapacity();
+    }
+
+    public PacketRing.Overflow getOverflow() {
+	return queue.getOverflow();
+    }
+
+    /**
+     * @return Number of packets the listener lost because its queue was
+     *   full
+     */
+    public long getDropped() {
+	return queue.getDropped();
+    }
+
+    /**
+     * @return Number of packets delivered to the listener
+     */
+    public long getDelivered() {
+	return delivered;
+    }
+
+    /**
+     * @return Number of packets for which the listener threw an exception
+     */
+    public long getFailures() {
+	return failures;
+    }
+
+    /**
+     * @return Delay between reception and delivery to the listener of the
+     *   last delivered packet, in nanoseconds
+     */
+    public long getLag() {
+	return lag;
+    }
+
+    /**
+     * @return How long packets have been waiting for the listener without
+     *   it taking any, at time now, in nanoseconds (0 if none are
+     *   waiting): the time since the listener last took a packet, or
+     *   since packets started waiting if more recent. Only exact in the
+     *   thread feeding the queue (the PhoenixSource thread).
+     * @param now Current time (NanoClock)
+     */
+    public long getQueuedLag(long now) {
+	long since = queue.getWaitingSince();
+	return since < 0 ? 0 : now - Math.max(since, lastTaken);
+    }
+
+    /**
+     * @return Largest delay between reception and delivery to the listener
+     *   so far, in nanoseconds
+     */
+    public long getMaxLag() {
+	return maxLag;
+    }
+}
@@ -0,0 +1,115 @@
+package net.tinyos.packet;
+
+/**
+ * Round-trip time estimator for acknowledged packets, used to pick the
+ * ack timeout (in the style of TCP, RFC 6298).
+ *
+ * The smoothed RTT and RTT variance are updated from each ack of a packet
+ * that was only sent once (Karn's rule: the ack of a retransmitted packet
+ * could belong to any of its copies). The timeout is
+ * srtt + 4 * rttvar, clamped to [minTimeout, maxTimeout], and doubles
+ * (up to maxTimeout) on every expiry until the next valid sample.
+ */
+public class RttEstimator {
+    private final long minTimeout;
+    private final long maxTimeout;
+
+    // All times in nanoseconds; srtt == 0 means no sample yet
+    private long srtt;
+    private long rttvar;
+    private long timeout;
+
+    private long samples;
+    private long timeouts;
+
+    /**
+     * Create a new estimator
+     * @param initialTimeout Timeout to use before the first sample (ms)
+     * @param minTimeout Smallest timeout (ms)
+     * @param maxTimeout Largest timeout, including backoff (ms)
+     */
+    public RttEstimator(int initialTimeout, int minTimeout, int maxTimeout) {
+	this.minTimeout = minTimeout * 1000000L;
+	this.maxTimeout = maxTimeout * 1000000L;
+	this.timeout = initialTimeout * 1000000L;
+    }
+
+    /**
+     * Record the round-trip time of a packet that was acknowledged
+     * without being retransmitted
+     * @param rtt Round-trip time in nanoseconds
+     */
+    public synchronized void sample(long rtt) {
+	if (rtt <= 0)
+	    rtt = 1;
+	if (srtt == 0) {
+	    srtt = rtt;
+	    rttvar = rtt / 2;
+	}
+	else {
+	    long delta = rtt - srtt;
+	    rttvar += (Math.abs(delta) - rttvar) >> 2;
+	    srtt += delta >> 3;
+	}
+	samples++;
+	timeout = clamp(srtt + 4 * rttvar);
+    }
+
+    /**
+     * Record that an ack timed out: back off the timeout
+     */
+    public synchronized void timedOut() {
+	timeouts++;
+	timeout = clamp(timeout * 2);
+    }
+
+    private long clamp(long t) {
+	if (t < minTimeout)
+	    return minTimeout;
+	if (t > maxTimeout)
+	    return maxTimeout;
+	return t;
+    }
+
+    /**
+     * @return The current ack timeout, in milliseconds (at least 1)
+     */
+    public synchronized long getTimeout() {
+	return Math.max(1, timeout / 1000000L);
+    }
+
+    /**
+     * @return The smoothed round-trip time, in microseconds (0 if no
+     *   sample yet)
+     */
+    public synchronized long getSmoothedRtt() {
+	return srtt / 1000;
+    }
+
+    /**
+     * @return The round-trip time variation, in microseconds
+     */
+    public synchronized long getRttVariance() {
+	return rttvar / 1000;
+    }
+
+    /**
+     * @return Number of round-trip times measured
+     */
+    public synchronized long getSamples() {
+	return samples;
+    }
+
+    /**
+     * @return Number of ack timeouts
+     */
+    public synchronized long getTimeouts() {
+	return timeouts;
+    }
+
+    public synchronized String toString() {
+	return "srtt " + getSmoothedRtt() + "us, rttvar " + getRttVariance() +
+	    "us, timeout " + getTimeout() + "ms (" + samples + " samples, " +
+	    timeouts + " timeouts)";
+    }
+}
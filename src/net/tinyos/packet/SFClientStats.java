@@ -0,0 +1,36 @@
+package net.tinyos.packet;
+
+/**
+ * Outbound queue counters of a serial forwarder client (see SFServer and
+ * net.tinyos.sf.SFClient). Packets for a client wait in a bounded queue
+ * until its socket takes them; a client whose queue overflows loses
+ * packets (dropped), and one that falls too far behind is disconnected
+ * (evicted), losing the packets still queued.
+ */
+public interface SFClientStats {
+    /**
+     * @return Client description
+     */
+    public String getName();
+
+    /**
+     * @return Number of packets waiting to be sent to the client
+     */
+    public int getQueued();
+
+    /**
+     * @return Number of packets discarded by the queue's overflow policy
+     */
+    public long getDropped();
+
+    /**
+     * @return Number of queued packets discarded when the client was
+     *   evicted (0 if it was not)
+     */
+    public long getEvicted();
+
+    /**
+     * @return Number of packets sent to the client
+     */
+    public long getSent();
+}
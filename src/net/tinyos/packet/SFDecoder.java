@@ -0,0 +1,114 @@
+package net.tinyos.packet;
+
+import java.io.IOException;
+
+/**
+ * Push-style decoder for the serial forwarder protocol (see SFProtocol),
+ * for event-driven connections: received bytes go in, in chunks of any
+ * size, and the negotiated version and complete packets come out. Used by
+ * both ends (NioSFSource, SFServer).
+ */
+abstract class SFDecoder {
+    // The partner's version header
+    private final byte[] partner = new byte[2];
+    private int partnerLength;
+
+    private int version; // 0 until negotiated
+
+    // Packet being received (null while waiting for a size byte), and the
+    // number of timestamp bytes still expected before its data
+    private byte[] packet;
+    private int packetLength;
+    private int timestampLength;
+    private long timestamp;
+
+    /**
+     * Called once the protocol version is known
+     * @param version The version both ends run: min(ours, partner's)
+     */
+    abstract protected void negotiated(int version) throws IOException;
+
+    /**
+     * Called with each received packet, which the callee can keep
+     * @param timestamp The packet's timestamp (version 'T'), 0 otherwise
+     */
+    abstract protected void packetReceived(byte[] packet, long timestamp)
+	throws IOException;
+
+    /**
+     * Start decoding a new connection
+     */
+    void reset() {
+	partnerLength = 0;
+	version = 0;
+	packet = null;
+    }
+
+    /**
+     * @return The negotiated version, 0 if not negotiated yet
+     */
+    int version() {
+	return version;
+    }
+
+    /**
+     * Decode received bytes in[pos..end-1]
+     * @exception IOException On protocol errors
+     */
+    void decode(byte[] in, int pos, int end) throws IOException {
+	while (pos < end) {
+	    if (version == 0) {
+		partner[partnerLength++] = in[pos++];
+		if (partnerLength == 2)
+		    negotiate();
+		continue;
+	    }
+
+	    if (packet == null) {
+		// Protocol is straightforward: 1 size byte, 8 bytes
+		// timestamp (version 'T' only), <n-8> data bytes
+		int size = in[pos++] & 0xff;
+		timestampLength = version == 'T' ? SFProtocol.TIMESTAMP_SIZE : 0;
+		if (size <= timestampLength)
+		    throw new IOException("0-byte packet");
+		packet = new byte[size - timestampLength];
+		packetLength = 0;
+		timestamp = 0;
+		continue;
+	    }
+
+	    if (timestampLength > 0) {
+		timestamp = timestamp << 8 | in[pos++] & 0xff;
+		timestampLength--;
+		continue;
+	    }
+
+	    int count = Math.min(end - pos, packet.length - packetLength);
+	    System.arraycopy(in, pos, packet, packetLength, count);
+	    pos += count;
+	    packetLength += count;
+	    if (packetLength == packet.length) {
+		byte[] p = packet;
+		packet = null;
+		packetReceived(p, timestamp);
+	    }
+	}
+    }
+
+    // Same negotiation as SFProtocol.openSource
+    private void negotiate() throws IOException {
+	// Check that it's a valid header (min version is ' ')
+	if (partner[0] != SFProtocol.NIO_VERSION[0])
+	    throw new IOException("protocol error");
+	// Actual version is min received vs our version
+	int v = partner[1] & 0xff;
+	int ourversion = SFProtocol.NIO_VERSION[1] & 0xff;
+	if (ourversion < v)
+	    v = ourversion;
+	if (v != ' ' && v != 'T')
+	    throw new IOException("bad protocol version");
+
+	version = v;
+	negotiated(v);
+    }
+}
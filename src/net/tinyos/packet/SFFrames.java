@@ -0,0 +1,78 @@
+package net.tinyos.packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import net.tinyos.util.NanoClock;
+
+/**
+ * The serial forwarder protocol frames (see SFProtocol) of one packet, for
+ * servers relaying it to many clients: each frame is encoded once, the
+ * first time a client running its protocol version needs it, and the same
+ * array is then written to every client. Frames are never modified once
+ * encoded, so they can be shared by any number of connections and
+ * threads.
+ *
+ * An SFFrames is reused for packet after packet by the thread relaying
+ * them (<code>reset</code>); the frames it returned stay valid.
+ */
+public final class SFFrames {
+    private PacketView packet;
+    private byte[] plain;   // version ' '
+    private byte[] stamped; // version 'T'
+    private byte[] batched; // version 'b'
+
+    /**
+     * Start encoding the frames of packet
+     */
+    public void reset(PacketView packet) {
+	this.packet = packet;
+	plain = stamped = batched = null;
+    }
+
+    /**
+     * @return The current packet's frame in protocol version (' ', 'T',
+     *   or 'b': the packet's length and data, which
+     *   SFProtocol.writeFrame completes), or null if the packet cannot be
+     *   sent in the serial forwarder protocol (empty, or too long)
+     */
+    public byte[] get(int version) {
+	if (version == 'b') {
+	    if (batched == null)
+		batched = encodeBatched();
+	    return batched;
+	}
+	if (version == 'T') {
+	    if (stamped == null)
+		stamped = encode(version);
+	    return stamped;
+	}
+	if (plain == null)
+	    plain = encode(version);
+	return plain;
+    }
+
+    private byte[] encode(int version) {
+	int length = packet.length();
+	int size = 1 + (version == 'T' ? SFProtocol.TIMESTAMP_SIZE : 0) + length;
+	ByteBuffer frame = ByteBuffer.allocate(size);
+	try {
+	    SFProtocol.encodePacket(frame, version, packet.buffer(), packet.offset(),
+				    length, NanoClock.toMillis(packet.time()));
+	}
+	catch (IOException e) {
+	    return null;
+	}
+	return frame.array();
+    }
+
+    private byte[] encodeBatched() {
+	int length = packet.length();
+	if (length == 0 || length > SFProtocol.MAX_BATCHED_PACKET)
+	    return null;
+	int lengthSize = length < 1 << 7 ? 1 : length < 1 << 14 ? 2 : 3;
+	ByteBuffer frame = ByteBuffer.allocate(lengthSize + length);
+	SFProtocol.putVarint(frame, length);
+	frame.put(packet.buffer(), packet.offset(), length);
+	return frame.array();
+    }
+}
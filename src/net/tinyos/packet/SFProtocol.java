@@ -34,7 +34,17 @@ package net.tinyos.packet;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import net.tinyos.util.Dump;
+import net.tinyos.util.NanoClock;
 
 /**
  * This is the TinyOS 2.x serial forwarder protocol. It is incompatible
@@ -50,28 +60,162 @@ abstract public class SFProtocol extends AbstractSource implements TimestampedPa
     // current protocols:
     // ' ': initial protocol, no further connection data, packets are
     //      1-byte length followed by n-bytes data. Length must be at least 1.
-    final static byte VERSION[] = {'U', 'T'};
+    // 'T': as ' ', but the length byte is followed by an 8-byte big-endian
+    //      timestamp (milliseconds since the epoch), included in the length.
+    // 'b': batches of packets. Each batch is a flags byte (bit 0: the
+    //      body is deflated, raw deflate), the body's length (a varint)
+    //      and the body, which holds packets up to its end. Each packet is
+    //      its timestamp, as the (zigzag varint) difference in nanoseconds
+    //      from the previous packet sent on the connection (from 0 for the
+    //      first), its length (a varint, 1 to 65535) and its data.
+    //      Varints are unsigned LEB128.
+    // Event-driven connections (NioSFSource, SFServer) do not run 'b'
+    // (yet), and offer NIO_VERSION instead.
+    final static byte VERSION[] = {'U', 'b'};
+    final static byte NIO_VERSION[] = {'U', 'T'};
     int version; // The protocol version we're running (negotiated)
-    
+
     /**
      * Size of timestamp in bytes
      */
     final static int TIMESTAMP_SIZE=8;
-    
+
     protected InputStream is;
     protected OutputStream os;
 
     protected long lastTimeStamp = 0;
-    
+    private long lastTimeStampNanos;
+
+    // Largest frame: size byte, timestamp, 255 bytes of data
+    final static int MAX_FRAME_SIZE = 1 + TIMESTAMP_SIZE + 255;
+
+    // Largest packet, largest (inflated) batch body in version 'b', and
+    // the room for a batch's flags and length
+    final static int MAX_BATCHED_PACKET = 65535;
+    final static int MAX_BATCH = 1 << 20;
+    final static int BATCH_HEADER_ROOM = 1 + 5;
+
+    /**
+     * Largest write batch size (see setWriteBatching): a batch that has
+     * not reached it yet can take one more packet (timestamp, length and
+     * data) and still fit in a version 'b' batch
+     */
+    public final static int MAX_BATCH_BYTES =
+	MAX_BATCH - (10 + 3 + MAX_BATCHED_PACKET);
+
+    // Smallest batch body worth deflating
+    private final static int MIN_DEFLATE = 64;
+
+    final static int READ_BUFFER_SIZE = 4096;
+
+    // Received bytes, decoded in place: inBuffer[inPos..inLimit-1] are
+    // yet to be decoded (reader side only)
+    private byte[] inBuffer;
+    private int inPos, inLimit;
+
+    // Version 'b': the received batch, body[bodyPos..bodyEnd-1] yet to be
+    // decoded, and the timestamp of the last packet read (reader side only)
+    private byte[] body = new byte[0];
+    private byte[] deflatedBody = new byte[0];
+    private int bodyPos, bodyEnd;
+    private long receivedTime;
+    private Inflater inflater;
+
+    // Frames (version 'b': the body of the batch) waiting to be written
+    // (see setWriteBatching), written together; under this's lock
+    private ByteBuffer out = ByteBuffer.allocate(MAX_FRAME_SIZE + BATCH_HEADER_ROOM);
+    private int batchBytes = MAX_FRAME_SIZE;
+    private long flushDelay; // nanoseconds, 0 to flush each packet
+    private boolean flushScheduled;
+    // Set while batched frames wait in out or are being written (read by
+    // close without the lock)
+    private volatile boolean batchPending;
+    private final Runnable deferredFlush = new Runnable() {
+	    public void run() {
+		deferredFlush();
+	    }
+	};
+    private final Runnable scheduledFlush = new Runnable() {
+	    public void run() {
+		flushers.execute(deferredFlush);
+	    }
+	};
+
+    // Version 'b' writer state, under this's lock
+    private long sentTime;
+    private Deflater deflater; // null unless compressing
+    private byte[] deflated = new byte[0];
+
+    // Longest close waits for the batched packets (and any write in
+    // progress) to be written, in milliseconds
+    final static long CLOSE_TIMEOUT = 1000;
+
+    // Set when closing because of an error: batched packets are dropped
+    private volatile boolean failed;
+
+    // Times the deferred flushes of all connections, which run in
+    // flushers' threads (so that a stalled peer only holds up its own
+    // flush)
+    private static ScheduledExecutorService flushTimer;
+    private static ExecutorService flushers;
+
     protected SFProtocol(String name) {
 	super(name);
     }
-    
+
+    /**
+     * Batch writes: packets written less than maxDelayMicros after the
+     * first unwritten one are written (and flushed) together, unless
+     * maxBytes bytes are waiting. Batching saves system calls (and tcp
+     * segments) at high packet rates, at the cost of up to maxDelayMicros
+     * latency; in protocol version 'b', a batch also shares its framing,
+     * and is deflated as a whole (see setCompression). By default (0
+     * delay), each packet is written as soon as possible. Batched packets
+     * are lost if the connection fails, or is closed without the peer
+     * reading them (see close).
+     * @param maxDelayMicros Longest a packet waits to be written, 0 to
+     *   write packets immediately
+     * @param maxBytes Write as soon as this many bytes are waiting (at
+     *   most MAX_BATCH_BYTES)
+     */
+    public synchronized void setWriteBatching(long maxDelayMicros, int maxBytes)
+	throws IOException {
+	if (maxDelayMicros < 0 || maxBytes < 0 || maxBytes > MAX_BATCH_BYTES)
+	    throw new IllegalArgumentException("bad write batching");
+	if (opened)
+	    flushWrites();
+	flushDelay = maxDelayMicros * 1000;
+	batchBytes = Math.max(maxBytes, MAX_FRAME_SIZE);
+	out = ByteBuffer.allocate(batchBytes + BATCH_HEADER_ROOM);
+	clearOutput();
+    }
+
+    /**
+     * Deflate the batches written in protocol version 'b' (when it makes
+     * them smaller), which is worth it on slow or metered links, with
+     * several packets per batch (see setWriteBatching). Has no effect in
+     * the older versions. Off by default.
+     */
+    public synchronized void setCompression(boolean compress) {
+	if (compress && deflater == null) {
+	    deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	}
+	else if (!compress && deflater != null) {
+	    deflater.end();
+	    deflater = null;
+	}
+    }
+
     protected void openSource() throws IOException {
+	inBuffer = new byte[READ_BUFFER_SIZE];
+	inPos = inLimit = 0;
+	bodyPos = bodyEnd = 0;
+	receivedTime = 0;
+
 	// Assumes streams are open
 	os.write(VERSION);
 	byte[] partner = readN(2);
-	
+
 	// Check that it's a valid header (min version is ' ')
 	if (partner[0] != VERSION[0])
 	    throw new IOException("protocol error");
@@ -81,108 +225,535 @@ abstract public class SFProtocol extends AbstractSource implements TimestampedPa
 	if (ourversion < version)
 	    version = ourversion;
 
-	// Handle the different protocol versions (currently only one)
+	// Handle the different protocol versions: older partners fall back
+	// to 'T' or ' '
 	// Any connection-time data-exchange goes here
 	switch (version) {
 	case ' ':
 	    break;
         case 'T':
-	    break;    
+	    break;
+	case 'b':
+	    break;
 	default:
 	    throw new IOException("bad protocol version");
 	}
+	synchronized (this) {
+	    sentTime = 0;
+	    failed = false;
+	    clearOutput();
+	}
+    }
+
+    /**
+     * Close, writing any batched packets first (unless closing because of
+     * an error). If the peer does not read them, or a batched write in
+     * progress, within CLOSE_TIMEOUT ms, the connection is closed
+     * regardless (abortSource) and the batched packets are lost.
+     */
+    @Override
+    public void close() throws IOException {
+	if (!batchPending) {
+	    // Nothing batched to wait for
+	    super.close();
+	    return;
+	}
+
+	CloseDeadline deadline = new CloseDeadline();
+	ScheduledFuture<?> timeout =
+	    flushTimer().schedule(deadline, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+	try {
+	    synchronized (this) {
+		if (opened && !failed) {
+		    try {
+			flushWrites();
+		    }
+		    catch (IOException e) { }
+		}
+		super.close();
+	    }
+	}
+	finally {
+	    timeout.cancel(false);
+	    deadline.cancel();
+	}
+    }
+
+    @Override
+    protected void closeAfterError() throws IOException {
+	failed = true;
+	close();
+    }
+
+    /**
+     * Close the connection at once, without locking this source, so that
+     * a blocked write fails (see close). Must not block.
+     */
+    abstract protected void abortSource();
+
+    // Aborts the close that created it, if still running (in the flush
+    // timer thread)
+    private class CloseDeadline implements Runnable {
+	private boolean done;
+
+	public synchronized void run() {
+	    if (!done) {
+		done = true;
+		abortSource();
+	    }
+	}
+
+	// The close is over: the connection may already be a new one
+	synchronized void cancel() {
+	    done = true;
+	}
     }
-	
+
     @Override
     protected byte[] readSourcePacket() throws IOException {
-	// Protocol is straightforward: 1 size byte, 8 bytes timestamp, <n-8> data bytes
-	byte[] size = readN(1);
-        byte[] read = null;
-        
+	byte[] packet = new byte[readHeader()];
+	readData(packet);
+	//Dump.dump("reading", packet);
+	return packet;
+    }
+
+    /**
+     * Read a packet into a pooled buffer (for sources read by a
+     * PhoenixSource), as readSourcePacket
+     */
+    PacketBuffer readSourcePacketBuffer() throws IOException {
+	PacketBuffer packet = PacketBuffer.allocate(readHeader());
+	try {
+	    readData(packet.getData());
+	}
+	catch (IOException e) {
+	    packet.release();
+	    throw e;
+	}
+	return packet;
+    }
+
+    // Decode a packet's size byte and (version 'T') timestamp
+    // @return The packet's data length
+    private int readHeader() throws IOException {
+	if (version == 'b')
+	    return readBatchedHeader();
+
+	// Protocol is straightforward: 1 size byte, 8 bytes timestamp
+	// (version 'T' only), <n-8> data bytes
+	fill(1);
+	int size = inBuffer[inPos++] & 0xff;
+
         // decide what to do depending on negotiated protocol version
         if (version=='T'){
-            if (size[0] <= 8)
+            if (size <= TIMESTAMP_SIZE)
                 throw new IOException("0-byte packet");
-            
+
             // read 8 bytes - timestamp
-            byte[] timestampByte = readN(8);
-            lastTimeStamp = ByteBuffer.allocate(8).put(timestampByte).getLong(0);
-            
-            // read rest of the packet
-            read = readN((size[0]-8) & 0xff);
+	    fill(TIMESTAMP_SIZE);
+	    long t = 0;
+	    for (int i = 0; i < TIMESTAMP_SIZE; i++)
+		t = t << 8 | inBuffer[inPos++] & 0xff;
+            lastTimeStamp = t;
+	    lastTimeStampNanos = NanoClock.fromMillis(t);
+	    return size - TIMESTAMP_SIZE;
         } else {
-            if (size[0] == 0)
+            if (size == 0)
                 throw new IOException("0-byte packet");
-            
+
             lastTimeStamp = 0;
-            read = readN(size[0] & 0xff);
+	    lastTimeStampNanos = 0;
+	    return size;
         }
-        
-	
-	//Dump.dump("reading", read);
-	return read;
     }
 
-    @Override
-    public long getLastTimestamp() {
-        return lastTimeStamp;
+    // Read data.length bytes into data
+    private void readData(byte[] data) throws IOException {
+	if (version == 'b') {
+	    System.arraycopy(body, bodyPos, data, 0, data.length);
+	    bodyPos += data.length;
+	    return;
+	}
+	fill(data.length);
+	System.arraycopy(inBuffer, inPos, data, 0, data.length);
+	inPos += data.length;
     }
-    
-    protected byte[] readN(int n) throws IOException {
-	byte[] data = new byte[n];
+
+    // Version 'b': decode a packet's timestamp and length, receiving the
+    // next batch if needed
+    private int readBatchedHeader() throws IOException {
+	while (bodyPos == bodyEnd)
+	    readBatch();
+
+	long delta = bodyVarint();
+	receivedTime += delta >>> 1 ^ -(delta & 1);
+	lastTimeStampNanos = receivedTime;
+	lastTimeStamp = NanoClock.toMillis(receivedTime);
+
+	long length = bodyVarint();
+	if (length == 0)
+	    throw new IOException("0-byte packet");
+	if (length > MAX_BATCHED_PACKET || length > bodyEnd - bodyPos)
+	    throw new IOException("protocol error");
+	return (int)length;
+    }
+
+    // Version 'b': receive a batch into body
+    private void readBatch() throws IOException {
+	fill(1);
+	int flags = inBuffer[inPos++] & 0xff;
+	if ((flags & ~1) != 0)
+	    throw new IOException("protocol error");
+	long length = 0;
+	for (int shift = 0;; shift += 7) {
+	    fill(1);
+	    int b = inBuffer[inPos++];
+	    length |= (long)(b & 0x7f) << shift;
+	    if (b >= 0)
+		break;
+	    if (shift > 28)
+		throw new IOException("protocol error");
+	}
+	if (length > MAX_BATCH)
+	    throw new IOException("protocol error");
+
+	int n = (int)length;
+	if ((flags & 1) == 0) {
+	    if (body.length < n)
+		body = new byte[n];
+	    readRaw(body, n);
+	    bodyEnd = n;
+	}
+	else {
+	    if (deflatedBody.length < n)
+		deflatedBody = new byte[n];
+	    readRaw(deflatedBody, n);
+	    bodyEnd = inflate(n);
+	}
+	bodyPos = 0;
+    }
+
+    // Read n bytes into data, whatever their size
+    private void readRaw(byte[] data, int n) throws IOException {
 	int offset = 0;
 
+	while (offset < n) {
+	    int count = Math.min(n - offset, READ_BUFFER_SIZE);
+	    fill(count);
+	    System.arraycopy(inBuffer, inPos, data, offset, count);
+	    inPos += count;
+	    offset += count;
+	}
+    }
+
+    // Inflate deflatedBody[0..n-1] into body
+    // @return The inflated length
+    private int inflate(int n) throws IOException {
+	if (inflater == null)
+	    inflater = new Inflater(true);
+	inflater.reset();
+	inflater.setInput(deflatedBody, 0, n);
+	if (body.length < 2 * n)
+	    body = new byte[Math.min(2 * n, MAX_BATCH)];
+	int length = 0;
+	try {
+	    for (;;) {
+		length += inflater.inflate(body, length, body.length - length);
+		if (inflater.finished())
+		    return length;
+		if (inflater.needsInput())
+		    throw new IOException("protocol error"); // truncated
+		if (length < body.length)
+		    continue;
+		if (body.length == MAX_BATCH)
+		    throw new IOException("protocol error");
+		byte[] bigger = new byte[Math.min(2 * body.length, MAX_BATCH)];
+		System.arraycopy(body, 0, bigger, 0, length);
+		body = bigger;
+	    }
+	}
+	catch (DataFormatException e) {
+	    throw new IOException("protocol error");
+	}
+    }
+
+    // Version 'b': decode a varint from body
+    private long bodyVarint() throws IOException {
+	long value = 0;
+	for (int shift = 0; bodyPos < bodyEnd; shift += 7) {
+	    int b = body[bodyPos++];
+	    value |= (long)(b & 0x7f) << shift;
+	    if (b >= 0)
+		return value;
+	    if (shift > 56)
+		break;
+	}
+	throw new IOException("protocol error");
+    }
+
+    // Make sure n (at most READ_BUFFER_SIZE) received bytes are buffered,
+    // reading as many as the stream has
+    private void fill(int n) throws IOException {
+	if (inLimit - inPos >= n)
+	    return;
+	if (inPos + n > inBuffer.length) {
+	    System.arraycopy(inBuffer, inPos, inBuffer, 0, inLimit - inPos);
+	    inLimit -= inPos;
+	    inPos = 0;
+	}
 	// A timeout would be nice, but there's no obvious way to
 	// write it before java 1.4 (probably some trickery with
 	// a thread and closing the stream would do the trick, but...)
-	while (offset < n) {
-	  int count = is.read(data, offset, n - offset);
+	while (inLimit - inPos < n) {
+	    int count = is.read(inBuffer, inLimit, inBuffer.length - inLimit);
 
-	  if (count == -1)
-	    throw new IOException("end-of-stream");
-	  offset += count;
+	    if (count == -1)
+		throw new IOException("end-of-stream");
+	    inLimit += count;
 	}
+    }
+
+    @Override
+    public long getLastTimestamp() {
+        return lastTimeStamp;
+    }
+
+    @Override
+    public long getLastTimestampNanos() {
+        return lastTimeStampNanos;
+    }
+
+    protected byte[] readN(int n) throws IOException {
+	byte[] data = new byte[n];
+	readRaw(data, n);
 	return data;
     }
 
     protected boolean writeSourcePacket(byte[] packet, long mili) throws IOException {
-	if (packet.length > 255)
-	    throw new IOException("packet too long");
-	if (packet.length == 0)
-	    throw new IOException("packet too short");
 	//Dump.dump("writing", packet);
-        
-        // decide what to do depending on negotiated protocol version
-        if (version=='T'){
-            // write length of packet - include timestamp here
-            os.write((byte)(packet.length + TIMESTAMP_SIZE));
-            // write timestamp first
-            os.write(ByteBuffer.allocate(8).putLong(mili).array());
-            // now write packet itself            
-            os.write(packet);
-            
-//System.err.println("WritePacket T: " + this.getName() + ": ");
-//Dump.printPacket(System.err, packet);
-//System.err.println();
-        
-        } else {
-            // default version
-            // write length of packet - include timestamp here
-            os.write((byte)(packet.length));
-            // now write packet itself
-            os.write(packet);
-//System.err.println("WritePacket: " + this.getName());            
-        }
-
-	os.flush();
+	if (version == 'b') {
+	    if (packet.length == 0)
+		throw new IOException("packet too short");
+	    if (packet.length > MAX_BATCHED_PACKET)
+		throw new IOException("packet too long");
+	    reserve(10 + 3 + packet.length);
+	    putTime(NanoClock.fromMillis(mili));
+	    putVarint(out, packet.length);
+	    out.put(packet);
+	}
+	else {
+	    reserve(MAX_FRAME_SIZE);
+	    encodePacket(out, version, packet, 0, packet.length, mili);
+	}
+	wrote();
 	return true;
     }
-    
+
     @Override
     protected boolean writeSourcePacket(byte[] packet) throws IOException {
 	return this.writeSourcePacket(packet, 2);
     }
 
+    /**
+     * Add length bytes of packet (from offset), framed as in protocol
+     * version, to output (which needs room for 1 + TIMESTAMP_SIZE + length
+     * bytes). For event-driven connections (NioSFSource, SFServer).
+     * @param mili Timestamp of the packet (sent in version 'T' only)
+     */
+    static void encodePacket(ByteBuffer output, int version, byte[] packet,
+			     int offset, int length, long mili) throws IOException {
+	if (length == 0)
+	    throw new IOException("packet too short");
+	if (version == 'T') {
+	    if (length + TIMESTAMP_SIZE > 255)
+		throw new IOException("packet too long");
+	    output.put((byte)(length + TIMESTAMP_SIZE));
+	    output.putLong(mili);
+	}
+	else {
+	    if (length > 255)
+		throw new IOException("packet too long");
+	    output.put((byte)length);
+	}
+	output.put(packet, offset, length);
+    }
+
+    /**
+     * Add an unsigned LEB128 varint to output
+     */
+    static void putVarint(ByteBuffer output, long value) {
+	while ((value & ~0x7fL) != 0) {
+	    output.put((byte)(value & 0x7f | 0x80));
+	    value >>>= 7;
+	}
+	output.put((byte)value);
+    }
+
+    /**
+     * @return The negotiated protocol version (' ', 'T' or 'b'), 0 before
+     *   the connection is open
+     */
+    public int getVersion() {
+	return version;
+    }
+
+    /**
+     * Write a frame of the negotiated version (see SFFrames), e.g. shared
+     * with other connections, batched as packets are (call with this
+     * locked). Frames of version 'b' are a packet's length and data only,
+     * completed with its timestamp here.
+     * @param time The packet's reception time (NanoClock)
+     */
+    protected void writeFrame(byte[] frame, long time) throws IOException {
+	if (version == 'b') {
+	    reserve(10 + frame.length);
+	    putTime(time);
+	}
+	else {
+	    reserve(frame.length);
+	}
+	out.put(frame);
+	wrote();
+    }
+
+    // Version 'b': add the timestamp of the next packet
+    private void putTime(long time) {
+	long delta = time - sentTime;
+	sentTime = time;
+	putVarint(out, delta << 1 ^ delta >> 63);
+    }
+
+    // Make room for n more bytes of output (call locked)
+    private void reserve(int n) throws IOException {
+	if (out.remaining() >= n)
+	    return;
+	flushWrites();
+	if (out.remaining() < n) {
+	    out = ByteBuffer.allocate(out.position() + n);
+	    clearOutput();
+	}
+    }
+
+    // Start a new batch of output (call locked)
+    private void clearOutput() {
+	out.clear();
+	if (version == 'b')
+	    out.position(BATCH_HEADER_ROOM);
+    }
+
+    // Frames were added to out (call locked): write them now, or once the
+    // batching delay has passed
+    private void wrote() throws IOException {
+	int waiting = out.position() - (version == 'b' ? BATCH_HEADER_ROOM : 0);
+	if (flushDelay == 0 || waiting >= batchBytes) {
+	    flushWrites();
+	}
+	else {
+	    batchPending = true;
+	    if (!flushScheduled) {
+		flushScheduled = true;
+		flushTimer().schedule(scheduledFlush, flushDelay, TimeUnit.NANOSECONDS);
+	    }
+	}
+    }
+
+    // Write the batched frames (call locked)
+    private void flushWrites() throws IOException {
+	byte[] data = out.array();
+	int start = 0, end = out.position();
+
+	if (version == 'b') {
+	    // Fill in the batch header, right before the (possibly
+	    // deflated) body
+	    int length = end - BATCH_HEADER_ROOM;
+	    if (length == 0)
+		return;
+	    int flags = 0;
+	    if (deflater != null && length >= MIN_DEFLATE) {
+		int deflatedLength = deflate(length);
+		if (deflatedLength > 0) {
+		    data = deflated;
+		    length = deflatedLength;
+		    end = BATCH_HEADER_ROOM + length;
+		    flags = 1;
+		}
+	    }
+	    int lengthSize = 1;
+	    for (int l = length; l >= 0x80; l >>>= 7)
+		lengthSize++;
+	    start = BATCH_HEADER_ROOM - 1 - lengthSize;
+	    ByteBuffer header = ByteBuffer.wrap(data, start, 1 + lengthSize);
+	    header.put((byte)flags);
+	    putVarint(header, length);
+	}
+	else if (end == 0) {
+	    return;
+	}
+
+	if (flushDelay > 0)
+	    batchPending = true;
+	try {
+	    os.write(data, start, end - start);
+	    os.flush();
+	}
+	finally {
+	    clearOutput();
+	    batchPending = false;
+	}
+    }
+
+    // Deflate the length-byte body of the batch in out into deflated
+    // (after BATCH_HEADER_ROOM bytes)
+    // @return The deflated length, 0 if deflating does not shrink the body
+    private int deflate(int length) {
+	if (deflated.length < BATCH_HEADER_ROOM + length)
+	    deflated = new byte[BATCH_HEADER_ROOM + length];
+	deflater.reset();
+	deflater.setInput(out.array(), BATCH_HEADER_ROOM, length);
+	deflater.finish();
+	int n = 0;
+	while (!deflater.finished() && n < length)
+	    n += deflater.deflate(deflated, BATCH_HEADER_ROOM + n, length - n);
+	return deflater.finished() && n < length ? n : 0;
+    }
+
+    private synchronized void deferredFlush() {
+	flushScheduled = false;
+	if (!opened)
+	    return;
+	try {
+	    flushWrites();
+	}
+	catch (IOException e) {
+	    // Reported to the reader, which sees the connection closed
+	    try {
+		closeAfterError();
+	    }
+	    catch (IOException ce) { }
+	}
+    }
+
+    private static synchronized ScheduledExecutorService flushTimer() {
+	if (flushTimer == null) {
+	    flushTimer = Executors.newSingleThreadScheduledExecutor(
+		flushThreads("SFProtocol flush timer"));
+	    flushers = Executors.newCachedThreadPool(
+		flushThreads("SFProtocol flusher"));
+	}
+	return flushTimer;
+    }
+
+    private static ThreadFactory flushThreads(final String name) {
+	return new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	    }
+	};
+    }
+
     @Override
     public boolean supportsTimestamping() {
         return version>='T';
@@ -0,0 +1,439 @@
+package net.tinyos.packet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import net.tinyos.util.NanoClock;
+
+/**
+ * Serial forwarder server driven by an IOEngine: relays the packets of a
+ * PhoenixSource to every connected client, and the clients' packets to the
+ * PhoenixSource, speaking the same protocol as SFProtocol. Accepting,
+ * reading and writing are all non-blocking and done by the engine's
+ * threads, so a few threads serve any number of clients, for any number
+ * of servers sharing the engine (unlike net.tinyos.sf.SFListen, which
+ * runs a thread per client).
+ *
+ * Packets from clients are written with PhoenixSource.writePacketAsync,
+ * so the I/O threads never wait for the packet source. Packets to clients
+ * are framed once per protocol version in use (SFFrames), whatever the
+ * number of clients, and the shared frames wait in a bounded queue per
+ * client, drained by the I/O threads with gathering writes as fast as the
+ * client's socket takes them. So the PhoenixSource thread never waits for
+ * a client either: a slow client loses packets (see setClientQueue), not
+ * the others. See SFClientStats for the per-client counters.
+ *
+ * Subclasses can override clientConnected, clientDisconnected and
+ * clientPacketWritten to track clients and traffic.
+ */
+public class SFServer {
+    private final PhoenixSource source;
+    private final int port;
+    private final IOEngine engine;
+
+    private ServerSocketChannel server;
+    private Acceptor acceptor;
+    private volatile boolean running;
+
+    private final ConcurrentHashMap<Client, Boolean> clients =
+	new ConcurrentHashMap<Client, Boolean>();
+
+    // Clients past the handshake, which packets are relayed to. Replaced,
+    // never modified (under this's lock).
+    private volatile Client[] receivers = new Client[0];
+    private final Fanout fanout = new Fanout();
+
+    // Outbound queues of new clients
+    private volatile int queueSize = DEFAULT_QUEUE_SIZE;
+    private volatile PacketRing.Overflow queueOverflow = PacketRing.Overflow.DROP_OLDEST;
+    private volatile long maxLag; // nanoseconds, 0 for none
+
+    /**
+     * Default client queue size (see setClientQueue)
+     */
+    public final static int DEFAULT_QUEUE_SIZE = 256;
+
+    /**
+     * Create a server for source on port (0 for any free port). The
+     * server must be started.
+     */
+    public SFServer(PhoenixSource source, int port, IOEngine engine) {
+	this.source = source;
+	this.port = port;
+	this.engine = engine;
+    }
+
+    /**
+     * Start listening for clients
+     * @exception IOException If the port could not be bound
+     */
+    public synchronized void start() throws IOException {
+	if (running)
+	    return;
+	ServerSocketChannel ch = ServerSocketChannel.open();
+	try {
+	    ch.socket().setReuseAddress(true);
+	    ch.socket().bind(new InetSocketAddress(port));
+	    ch.configureBlocking(false);
+	}
+	catch (IOException e) {
+	    ch.close();
+	    throw e;
+	}
+	server = ch;
+	running = true;
+	source.registerPacketListener(fanout);
+	acceptor = new Acceptor(ch, engine.next());
+	acceptor.start();
+    }
+
+    /**
+     * Stop listening, and disconnect all clients
+     */
+    public void shutdown() {
+	synchronized (this) {
+	    if (!running)
+		return;
+	    running = false;
+	    acceptor.stop();
+	}
+	source.deregisterPacketListener(fanout);
+	for (Client c : clients.keySet())
+	    c.close();
+    }
+
+    /**
+     * Set the outbound queue of clients connecting from now on. By
+     * default, clients queue DEFAULT_QUEUE_SIZE packets, drop their
+     * oldest packets when full, and are never evicted.
+     * @param capacity Maximum number of packets queued for a client
+     * @param overflow What to do when a client's queue is full
+     *   (DROP_OLDEST or DROP_NEWEST: clients cannot block the server)
+     * @param maxLagMillis Disconnect (evict) a client when packets have
+     *   waited for it for more than maxLagMillis ms without it taking any
+     *   (see QueuedListener.getQueuedLag), 0 never to evict clients
+     */
+    public void setClientQueue(int capacity, PacketRing.Overflow overflow,
+			       long maxLagMillis) {
+	if (capacity <= 0 || maxLagMillis < 0)
+	    throw new IllegalArgumentException("bad client queue size or lag");
+	if (overflow == PacketRing.Overflow.BLOCK)
+	    throw new IllegalArgumentException("clients cannot block the server");
+	queueSize = capacity;
+	queueOverflow = overflow;
+	maxLag = maxLagMillis * 1000000L;
+    }
+
+    /**
+     * @return The connected clients' outbound queue counters
+     */
+    public List<SFClientStats> getClientStats() {
+	return new ArrayList<SFClientStats>(clients.keySet());
+    }
+
+    public boolean isRunning() {
+	return running;
+    }
+
+    /**
+     * @return The port the server listens on (useful when it was created
+     *   with port 0)
+     */
+    public synchronized int getPort() {
+	return server != null ? server.socket().getLocalPort() : port;
+    }
+
+    public PhoenixSource getSource() {
+	return source;
+    }
+
+    /**
+     * @return Number of connected clients (including those still in the
+     *   protocol handshake)
+     */
+    public int getClients() {
+	return clients.size();
+    }
+
+    private synchronized void addReceiver(Client c) {
+	Client[] r = new Client[receivers.length + 1];
+	System.arraycopy(receivers, 0, r, 0, receivers.length);
+	r[receivers.length] = c;
+	receivers = r;
+    }
+
+    private synchronized void removeReceiver(Client c) {
+	Client[] r = receivers;
+	for (int i = 0; i < r.length; i++) {
+	    if (r[i] == c) {
+		Client[] n = new Client[r.length - 1];
+		System.arraycopy(r, 0, n, 0, i);
+		System.arraycopy(r, i + 1, n, i, n.length - i);
+		receivers = n;
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Called when a client has completed the protocol handshake. Runs in
+     * an I/O thread: must not block.
+     */
+    protected void clientConnected(SFClientStats client) {
+    }
+
+    /**
+     * Called when a client that completed the handshake disconnects
+     * @param reason Why (null if the server was shut down)
+     */
+    protected void clientDisconnected(SFClientStats client, IOException reason) {
+    }
+
+    /**
+     * Called when the packet source has written a packet received from a
+     * client. Must not block.
+     * @param acknowledged Whether the packet was acknowledged (see
+     *   PhoenixSource.writePacket), false if the write failed
+     */
+    protected void clientPacketWritten(byte[] packet, boolean acknowledged) {
+    }
+
+    // How long to stop accepting clients after accept failed, in ms
+    private final static long ACCEPT_RETRY_DELAY = 100;
+
+    // Accepts clients, in its I/O thread
+    private class Acceptor implements IOEngine.Handler {
+	private final ServerSocketChannel channel;
+	private final IOEngine.EventLoop loop;
+
+	// Resumes accepting after a failed accept (see ready)
+	private final Runnable rearm = new Runnable() {
+		public void run() {
+		    SelectionKey key = channel.keyFor(loop.selector);
+		    if (key != null && key.isValid())
+			key.interestOps(SelectionKey.OP_ACCEPT);
+		}
+	    };
+
+	Acceptor(ServerSocketChannel channel, IOEngine.EventLoop loop) {
+	    this.channel = channel;
+	    this.loop = loop;
+	}
+
+	void start() {
+	    loop.execute(new Runnable() {
+		    public void run() {
+			try {
+			    channel.register(loop.selector, SelectionKey.OP_ACCEPT,
+					     Acceptor.this);
+			}
+			catch (ClosedChannelException e) { }
+		    }
+		});
+	}
+
+	void stop() {
+	    try {
+		channel.close();
+	    }
+	    catch (IOException e) { }
+	}
+
+	public void ready(SelectionKey key) {
+	    for (;;) {
+		SocketChannel ch;
+		try {
+		    ch = channel.accept();
+		}
+		catch (IOException e) {
+		    if (!channel.isOpen())
+			return;
+		    // Probably out of descriptors. OP_ACCEPT would report
+		    // the same pending connection at once, spinning this
+		    // thread: stop accepting for a while instead
+		    key.interestOps(0);
+		    loop.executeLater(rearm, ACCEPT_RETRY_DELAY);
+		    return;
+		}
+		if (ch == null)
+		    return;
+		Client c = new Client(ch.socket());
+		clients.put(c, Boolean.TRUE);
+		try {
+		    c.attach(ch);
+		    c.send(ByteBuffer.wrap(SFProtocol.NIO_VERSION));
+		}
+		catch (IOException e) {
+		    c.fail(e);
+		}
+		if (!running)
+		    c.close();
+	    }
+	}
+
+	public void fail(IOException e) {
+	    stop();
+	}
+    }
+
+    // Relays the source's packets to the clients, in the PhoenixSource
+    // thread
+    private class Fanout implements PacketListenerIF {
+	private final SFFrames frames = new SFFrames();
+
+	public void packetReceived(byte[] packet) {
+	    packetReceived(packet, System.currentTimeMillis());
+	}
+
+	public void packetReceived(byte[] packet, long mili) {
+	    packetReceived(new PacketView(packet, 0, packet.length,
+					  NanoClock.fromMillis(mili), null));
+	}
+
+	public void packetReceived(PacketView packet) {
+	    Client[] r = receivers;
+	    if (r.length == 0)
+		return;
+	    frames.reset(packet);
+	    for (int i = 0; i < r.length; i++) {
+		byte[] frame = frames.get(r[i].version);
+		if (frame != null)
+		    r[i].frameReceived(frame, packet.time());
+	    }
+	}
+    }
+
+    // A connected client
+    private class Client extends NioConnection implements SFClientStats {
+	private final String name;
+	private volatile int version;
+	private boolean registered; // as a listener (under this's lock)
+
+	// Frames waiting for the client: put by the PhoenixSource thread,
+	// taken by the I/O thread
+	private final PacketRing queue =
+	    new PacketRing(queueSize, queueOverflow);
+	private final long lagLimit = maxLag;
+	private volatile long sent;
+	private volatile long evicted;
+	private volatile long lastTaken; // when the socket last took packets
+
+	private final SFDecoder decoder = new SFDecoder() {
+		protected void negotiated(int v) {
+		    version = v;
+		    synchronized (Client.this) {
+			if (!running)
+			    return;
+			registered = true;
+		    }
+		    addReceiver(Client.this);
+		    clientConnected(Client.this);
+		}
+
+		protected void packetReceived(final byte[] packet, long timestamp) {
+		    CompletableFuture<Boolean> written = source.writePacketAsync(packet);
+		    written.whenComplete(new BiConsumer<Boolean, Throwable>() {
+			    public void accept(Boolean acked, Throwable failure) {
+				clientPacketWritten(packet, failure == null && acked);
+			    }
+			});
+		}
+	    };
+
+	Client(Socket socket) {
+	    super(engine);
+	    name = "client at " + socket.getInetAddress().getHostAddress() +
+		":" + socket.getPort();
+	}
+
+	protected void received(byte[] buffer, int offset, int count, long time)
+	    throws IOException {
+	    decoder.decode(buffer, offset, offset + count);
+	}
+
+	protected void failed(IOException e) {
+	    disconnected(e);
+	}
+
+	boolean close() {
+	    boolean wasOpen = super.close();
+	    if (wasOpen)
+		disconnected(null);
+	    return wasOpen;
+	}
+
+	private void disconnected(IOException reason) {
+	    boolean wasRegistered;
+	    synchronized (this) {
+		wasRegistered = registered;
+		registered = false;
+	    }
+	    clients.remove(this);
+	    if (wasRegistered)
+		removeReceiver(this);
+	    queue.close();
+	    if (wasRegistered)
+		clientDisconnected(this, reason);
+	}
+
+	// In the PhoenixSource thread
+	void frameReceived(byte[] frame, long time) {
+	    if (lagLimit > 0) {
+		long since = queue.getWaitingSince();
+		if (since >= 0 && time - Math.max(since, lastTaken) > lagLimit) {
+		    evicted = queue.size();
+		    fail(new IOException(name + " too slow, evicted"));
+		    return;
+		}
+	    }
+	    queue.put(frame, time);
+	    outputReady();
+	}
+
+	// In the I/O thread: hand over as many queued frames as allowed
+	protected int produceOutput(ByteBuffer[] buffers) {
+	    lastTaken = NanoClock.now();
+	    int count = 0;
+	    byte[] frame;
+	    while (count < buffers.length && (frame = queue.poll()) != null) {
+		buffers[count++] = ByteBuffer.wrap(frame);
+		sent++;
+	    }
+	    return count;
+	}
+
+	public String getName() {
+	    return name;
+	}
+
+	public int getQueued() {
+	    return queue.size();
+	}
+
+	public long getDropped() {
+	    return queue.getDropped();
+	}
+
+	public long getEvicted() {
+	    return evicted;
+	}
+
+	public long getSent() {
+	    return sent;
+	}
+
+	public String toString() {
+	    return name;
+	}
+    }
+}
@@ -39,7 +39,7 @@ import java.net.Socket;
  * Packet source (tcp/ip client) for the new serial forwarder protocol
  */
 class SFSource extends SFProtocol {
-    private Socket socket;
+    private volatile Socket socket;
     private String host;
     private int port;
 
@@ -64,4 +64,30 @@ class SFSource extends SFProtocol {
     protected void closeSource() throws IOException {
 	socket.close();
     }
+
+    protected void abortSource() {
+	Socket s = socket;
+	if (s != null) {
+	    try {
+		s.close();
+	    }
+	    catch (IOException e) { }
+	}
+    }
+
+    /**
+     * Read a packet straight into a pooled buffer
+     */
+    @Override
+    public PacketBuffer readPacketBuffer() throws IOException {
+	failIfClosed();
+
+	try {
+	    return readSourcePacketBuffer();
+	}
+	catch (IOException e) {
+	    closeAfterError();
+	    throw e;
+	}
+    }
 }
@@ -0,0 +1,23 @@
+package net.tinyos.packet;
+
+/**
+ * Last-moment modification of outgoing active messages, e.g. to stamp
+ * them with the current time. Interceptors are registered per AM type
+ * with <code>SendInterceptors.register</code>, and are run by the
+ * Packetizer just before each transmission of a matching packet
+ * (including retransmissions).
+ *
+ * Interceptors run in the writing thread (or a Packetizer retransmit
+ * thread) and must be fast.
+ */
+public interface SendInterceptor {
+    /**
+     * Patch packet in place before it is sent
+     * @param packet The packet being sent, in PacketSource format (the
+     *   first byte is Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID, followed by
+     *   the serial AM header and the payload)
+     * @param offset Offset of the AM payload in packet
+     * @param length Length of the AM payload
+     */
+    public void beforeSend(byte[] packet, int offset, int length);
+}
@@ -0,0 +1,84 @@
+package net.tinyos.packet;
+
+/**
+ * Registry of the SendInterceptors run on outgoing active messages,
+ * keyed by AM type. Several interceptors can be registered for one
+ * type; they run in registration order.
+ *
+ * Lookups are a single array index on the packet's AM type byte, and
+ * neither lookups nor packets without interceptors allocate anything.
+ */
+public class SendInterceptors {
+    // Layout of an active message in PacketSource format: protocol byte,
+    // then the serial AM header (see net.tinyos.message.SerialPacket):
+    // dest (2 bytes), src (2), length (1), group (1), type (1)
+    final static int LENGTH_OFFSET = 5;
+
+    final static int TYPE_OFFSET = 7;
+
+    final static int DATA_OFFSET = 8;
+
+    // Interceptors for each AM type (null if none). Replaced, never
+    // modified, so lookups need no locking.
+    private static volatile SendInterceptor[][] chains = new SendInterceptor[256][];
+
+    /**
+     * Run interceptor on every active message of type amType sent by a
+     * Packetizer
+     */
+    public static synchronized void register(int amType, SendInterceptor interceptor) {
+	SendInterceptor[][] c = chains.clone();
+	SendInterceptor[] chain = c[amType & 0xff];
+	int n = chain == null ? 0 : chain.length;
+	SendInterceptor[] newChain = new SendInterceptor[n + 1];
+
+	if (n > 0)
+	    System.arraycopy(chain, 0, newChain, 0, n);
+	newChain[n] = interceptor;
+	c[amType & 0xff] = newChain;
+	chains = c;
+    }
+
+    /**
+     * Stop running interceptor on active messages of type amType
+     */
+    public static synchronized void deregister(int amType, SendInterceptor interceptor) {
+	SendInterceptor[][] c = chains.clone();
+	SendInterceptor[] chain = c[amType & 0xff];
+	if (chain == null)
+	    return;
+
+	for (int i = 0; i < chain.length; i++) {
+	    if (chain[i] == interceptor) {
+		SendInterceptor[] newChain = null;
+		if (chain.length > 1) {
+		    newChain = new SendInterceptor[chain.length - 1];
+		    System.arraycopy(chain, 0, newChain, 0, i);
+		    System.arraycopy(chain, i + 1, newChain, i, chain.length - i - 1);
+		}
+		c[amType & 0xff] = newChain;
+		chains = c;
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Run the interceptors for packet's AM type (if packet is an active
+     * message)
+     * @param packet Packet in PacketSource format
+     */
+    static void intercept(byte[] packet) {
+	if (packet.length < DATA_OFFSET ||
+	    packet[0] != Serial.TOS_SERIAL_ACTIVE_MESSAGE_ID)
+	    return;
+
+	SendInterceptor[] chain = chains[packet[TYPE_OFFSET] & 0xff];
+	if (chain == null)
+	    return;
+
+	int length = Math.min(packet[LENGTH_OFFSET] & 0xff, packet.length - DATA_OFFSET);
+	for (int i = 0; i < chain.length; i++)
+	    chain[i].beforeSend(packet, DATA_OFFSET, length);
+    }
+}
@@ -0,0 +1,289 @@
+package net.tinyos.packet;
+
+import java.io.IOException;
+
+/**
+ * Sliding window of acknowledged packets for a Packetizer. Up to
+ * <code>size</code> packets, each with its own sequence number, may be
+ * waiting for their ack at once. Acks are matched to packets by sequence
+ * number in any order; unacknowledged packets are retransmitted (with
+ * the same sequence number) by a timer thread, using the Packetizer's
+ * RTT-based timeout.
+ */
+class SendWindow implements Runnable {
+    private static class Entry {
+	byte[] packet;
+	PacketWriteListener listener;
+	int seq;
+	int retries;
+	long sent; // System.nanoTime of first transmission
+	long deadline;
+	boolean done;
+	boolean acknowledged;
+    }
+
+    private final Packetizer packetizer;
+    private final int size;
+
+    // In-flight packets, indexed by sequence number
+    private final Entry[] inFlight = new Entry[256];
+    private int count;
+    private int nextSeq;
+    private boolean closed;
+    private Thread timer;
+
+    SendWindow(Packetizer packetizer, int size) {
+	this.packetizer = packetizer;
+	this.size = size;
+	nextSeq = 13;
+    }
+
+    int getSize() {
+	return size;
+    }
+
+    /**
+     * Send packet and wait for it to be acknowledged
+     * @return true if packet was acknowledged
+     */
+    boolean write(byte[] packet) throws IOException {
+	Entry e = send(packet, null);
+
+	synchronized (this) {
+	    while (!e.done) {
+		try {
+		    wait();
+		}
+		catch (InterruptedException ie) {
+		    throw new IOException("interrupted");
+		}
+	    }
+	}
+	return e.acknowledged;
+    }
+
+    /**
+     * Send packet as soon as the window has room. listener (if not null)
+     * is told of the packet's fate.
+     */
+    void write(byte[] packet, PacketWriteListener listener) throws IOException {
+	send(packet, listener);
+    }
+
+    /**
+     * Send n packets, packets[i] being reported to listeners[i]. Packets
+     * are sent in groups of as many as the window has room for, each group
+     * in a single write.
+     */
+    void write(byte[][] packets, PacketWriteListener[] listeners, int n)
+	throws IOException {
+	Entry[] batch = new Entry[Math.min(n, size)];
+	int[] seqs = new int[batch.length];
+	byte[][] frames = new byte[batch.length][];
+
+	for (int i = 0; i < n; ) {
+	    int count;
+
+	    synchronized (this) {
+		awaitRoom();
+		count = Math.min(n - i, size - this.count);
+		for (int j = 0; j < count; j++) {
+		    batch[j] = add(packets[i + j], listeners[i + j]);
+		    seqs[j] = batch[j].seq;
+		    frames[j] = packets[i + j];
+		}
+	    }
+
+	    try {
+		packetizer.writeAckedFrames(seqs, frames, count);
+	    }
+	    catch (IOException ioe) {
+		for (int j = 0; j < count; j++)
+		    complete(batch[j], false);
+		throw ioe;
+	    }
+	    i += count;
+	}
+    }
+
+    private Entry send(byte[] packet, PacketWriteListener listener) throws IOException {
+	Entry e;
+
+	synchronized (this) {
+	    awaitRoom();
+	    e = add(packet, listener);
+	}
+
+	try {
+	    packetizer.writeAckedFrame(e.seq, packet);
+	}
+	catch (IOException ioe) {
+	    complete(e, false);
+	    throw ioe;
+	}
+	return e;
+    }
+
+    // Wait until the window has room (call with the window locked)
+    private void awaitRoom() throws IOException {
+	while (count >= size && !closed) {
+	    try {
+		wait();
+	    }
+	    catch (InterruptedException ie) {
+		throw new IOException("interrupted");
+	    }
+	}
+	if (closed)
+	    throw new IOException("closed");
+    }
+
+    // Put a new packet in the window (call with the window locked)
+    private Entry add(byte[] packet, PacketWriteListener listener) {
+	Entry e = new Entry();
+	e.packet = packet;
+	e.listener = listener;
+
+	while (inFlight[nextSeq & 0xff] != null)
+	    nextSeq++;
+	e.seq = nextSeq++ & 0xff;
+	e.sent = System.nanoTime();
+	e.deadline = System.currentTimeMillis() + packetizer.getRttEstimator().getTimeout();
+	inFlight[e.seq] = e;
+	count++;
+	startTimer();
+	notifyAll();
+	return e;
+    }
+
+    private void startTimer() {
+	if (timer == null) {
+	    timer = new Thread(this);
+	    timer.setName(packetizer.getName() + "; Packetizer retransmit");
+	    timer.setDaemon(true);
+	    timer.start();
+	}
+    }
+
+    /**
+     * An ack for sequence number seq was received
+     */
+    void acked(int seq) {
+	Entry e;
+
+	synchronized (this) {
+	    e = inFlight[seq];
+	}
+	if (e != null) {
+	    // Karn's rule: only time packets that were sent once
+	    if (e.retries == 0)
+		packetizer.getRttEstimator().sample(System.nanoTime() - e.sent);
+	    complete(e, true);
+	}
+    }
+
+    // Remove e from the window and report its outcome (once)
+    private void complete(Entry e, boolean acknowledged) {
+	synchronized (this) {
+	    if (e.done)
+		return;
+	    e.done = true;
+	    e.acknowledged = acknowledged;
+	    if (inFlight[e.seq] == e) {
+		inFlight[e.seq] = null;
+		count--;
+	    }
+	    notifyAll();
+	}
+	if (e.listener != null) {
+	    try {
+		e.listener.packetWritten(e.packet, acknowledged);
+	    }
+	    catch (RuntimeException re) { }
+	}
+    }
+
+    /**
+     * Fail all in-flight packets and stop the retransmission timer
+     */
+    void close() {
+	Entry[] pending;
+
+	synchronized (this) {
+	    closed = true;
+	    pending = inFlight.clone();
+	    notifyAll();
+	}
+	for (int i = 0; i < pending.length; i++)
+	    if (pending[i] != null)
+		complete(pending[i], false);
+    }
+
+    // Retransmission timer
+    public void run() {
+	Entry[] expired = new Entry[inFlight.length];
+
+	for (;;) {
+	    int n = 0;
+
+	    synchronized (this) {
+		while (n == 0) {
+		    if (closed)
+			return;
+
+		    long now = System.currentTimeMillis();
+		    long next = 0;
+		    for (int i = 0; i < inFlight.length; i++) {
+			Entry e = inFlight[i];
+			if (e == null)
+			    continue;
+			if (e.deadline <= now)
+			    expired[n++] = e;
+			else if (next == 0 || e.deadline < next)
+			    next = e.deadline;
+		    }
+		    if (n > 0)
+			break;
+		    try {
+			wait(next == 0 ? 0 : next - now);
+		    }
+		    catch (InterruptedException ie) {
+			return;
+		    }
+		}
+	    }
+
+	    // One timeout (and back-off) per pass, however many packets it
+	    // caught
+	    RttEstimator rtt = packetizer.getRttEstimator();
+	    rtt.timedOut();
+	    long deadline = System.currentTimeMillis() + rtt.getTimeout();
+
+	    for (int i = 0; i < n; i++) {
+		Entry e = expired[i];
+		expired[i] = null;
+		boolean giveUp;
+
+		synchronized (this) {
+		    // Acknowledged (or failed) since the pass: resending it
+		    // would make the mote deliver a duplicate
+		    if (e.done || inFlight[e.seq] != e)
+			continue;
+		    giveUp = ++e.retries >= packetizer.getMaxRetries();
+		    e.deadline = deadline;
+		}
+
+		if (!giveUp) {
+		    try {
+			packetizer.writeAckedFrame(e.seq, e.packet);
+		    }
+		    catch (IOException ioe) {
+			giveUp = true;
+		    }
+		}
+		if (giveUp)
+		    complete(e, false);
+	    }
+	}
+    }
+}
@@ -104,11 +104,14 @@ public class SerialByteSource extends StreamByteSource implements
 
   Object sync = new Object();
 
-  public byte readByte() throws IOException {
+  // Wait until at least one byte is available, and return how many are
+  private int awaitAvailable() throws IOException {
     // On Linux at least, javax.comm input streams are not interruptible.
     // Make them so, relying on the DATA_AVAILABLE serial event.
     synchronized (sync) {
-      while (is.available() == 0) {
+      int available;
+
+      while ((available = is.available()) == 0) {
         try {
           sync.wait();
         } catch (InterruptedException e) {
@@ -116,11 +119,23 @@ public class SerialByteSource extends StreamByteSource implements
           throw new IOException("interrupted");
         }
       }
+      return available;
     }
+  }
 
+  public byte readByte() throws IOException {
+    awaitAvailable();
     return super.readByte();
   }
 
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    // The serial input stream does not block, so never ask for more
+    // than is there
+    int available = awaitAvailable();
+
+    return super.read(buffer, offset, Math.min(length, available));
+  }
+
   public void serialEvent(SerialPortEvent ev) {
     if (ev.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
       synchronized (sync) {
@@ -34,6 +34,7 @@ package net.tinyos.packet;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import net.tinyos.util.Dump;
 
 abstract public class StreamByteSource implements ByteSource
@@ -88,16 +89,79 @@ abstract public class StreamByteSource implements ByteSource
 	return (byte)serialByte;
     }
 
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+	int count;
+
+	if (!opened)
+	    throw new IOException("not open");
+
+	try {
+	    count = is.read(buffer, offset, length);
+	}
+	catch (IOException e) {
+	    count = -1;
+	}
+
+	if (count == -1) {
+	    close();
+	    throw new IOException("read error");
+	}
+
+	return count;
+    }
+
+    // Bounce buffer for reads into direct ByteBuffers
+    private byte[] readScratch;
+
+    public int read(ByteBuffer buffer) throws IOException {
+	int count;
+
+	if (buffer.hasArray()) {
+	    count = read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+			 buffer.remaining());
+	    buffer.position(buffer.position() + count);
+	}
+	else {
+	    if (readScratch == null || readScratch.length < buffer.remaining())
+		readScratch = new byte[buffer.remaining()];
+	    count = read(readScratch, 0, buffer.remaining());
+	    buffer.put(readScratch, 0, count);
+	}
+	return count;
+    }
+
     public void writeBytes(byte[] bytes) throws IOException {
+	writeBytes(bytes, 0, bytes.length);
+    }
+
+    // Bounce buffer for writes from direct ByteBuffers
+    private byte[] writeScratch;
+
+    public void writeBytes(ByteBuffer bytes) throws IOException {
+	int count = bytes.remaining();
+
+	if (bytes.hasArray()) {
+	    writeBytes(bytes.array(), bytes.arrayOffset() + bytes.position(), count);
+	}
+	else {
+	    if (writeScratch == null || writeScratch.length < count)
+		writeScratch = new byte[count];
+	    bytes.get(writeScratch, 0, count);
+	    writeBytes(writeScratch, 0, count);
+	}
+	bytes.position(bytes.limit());
+    }
+
+    protected void writeBytes(byte[] bytes, int offset, int count) throws IOException {
 	if (!opened)
 	    throw new IOException("not open");
 
 	try {
-	    os.write(bytes);
+	    os.write(bytes, offset, count);
 	    os.flush();
             
 //System.err.println("Written to :" + this.name + ";");
-//Dump.printPacket(System.err, bytes);
+//Dump.printPacket(System.err, bytes, offset, count);
 //System.err.println();
 
 	}
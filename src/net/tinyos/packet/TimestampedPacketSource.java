@@ -4,6 +4,9 @@
  */
 package net.tinyos.packet;
 
+import java.io.IOException;
+import net.tinyos.util.NanoClock;
+
 /**
  *
  * @author ph4r05
@@ -14,10 +17,32 @@ public interface TimestampedPacketSource extends PacketSource {
      * @return 
      */
     public long getLastTimestamp();
+
+    /**
+     * Returns timestamp of last received packet in nanoseconds since the
+     * epoch (see net.tinyos.util.NanoClock). Sources with millisecond
+     * timestamps only return getLastTimestamp() scaled up.
+     * @return 
+     */
+    default public long getLastTimestampNanos() {
+        return NanoClock.fromMillis(getLastTimestamp());
+    }
     
     /**
      * Whether current negotiated session supports timestamping (can be negotiated base version)
      * @return 
      */
     public boolean supportsTimestamping();
+
+    /**
+     * Read a packet, stamped with its reception time when the session
+     * supports timestamping (the time of reading otherwise)
+     */
+    @Override
+    default public PacketView readPacketView() throws IOException {
+        PacketBuffer packet = readPacketBuffer();
+        long time = supportsTimestamping() ?
+            getLastTimestampNanos() : NanoClock.now();
+        return new PacketView(packet, time, getName());
+    }
 }
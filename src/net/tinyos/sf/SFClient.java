@@ -50,14 +50,26 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import net.tinyos.packet.PacketListenerIF;
+import net.tinyos.packet.PacketView;
+import net.tinyos.packet.QueuedListener;
+import net.tinyos.packet.SFClientStats;
+import net.tinyos.packet.SFFrames;
 import net.tinyos.packet.SFProtocol;
+import net.tinyos.util.NanoClock;
 
-public class SFClient extends SFProtocol implements Runnable, PacketListenerIF {
+public class SFClient extends SFProtocol
+    implements Runnable, PacketListenerIF, SFClientStats {
     private Thread thread;
     private Socket socket = null;
     private SerialForwarder sf;
     private SFListen listenServer;
 
+    // Frames of the source's packets wait here (relayed by SFListen,
+    // written by the queue's thread), so that a slow client does not hold
+    // up the source
+    private volatile QueuedListener queue;
+    private volatile long evicted;
+
     public SFClient(Socket socket, SerialForwarder serialForward,
 		    SFListen listenSvr) {
 	super("");
@@ -85,10 +97,47 @@ public class SFClient extends SFProtocol implements Runnable, PacketListenerIF {
         socket.close();
     }
 
+    protected void abortSource() {
+	try {
+	    socket.close();
+	}
+	catch (IOException e) { }
+    }
+
     private void init() throws IOException {
 	sf.incrementClients();
 	open(sf);
-	listenServer.source.registerPacketListener(this);
+	setWriteBatching(sf.clientBatchDelay, sf.clientBatchBytes);
+	setCompression(sf.clientCompress);
+	QueuedListener q = new QueuedListener(this, sf.clientQueueSize,
+					      sf.clientOverflow, name);
+	q.start();
+	queue = q;
+	listenServer.addReceiver(this);
+    }
+
+    /**
+     * Queue frame, the SFFrames frame of a packet received at time
+     * (NanoClock) in our protocol version. Called in the PhoenixSource
+     * thread.
+     */
+    void frameReceived(byte[] frame, long time) {
+	queue.packetReceived(frame, NanoClock.toMillis(time), time);
+    }
+
+    /**
+     * Evict this client if packets have waited for it more than maxLag ns
+     * without it taking any, at time now (see QueuedListener.getQueuedLag).
+     * Called in the PhoenixSource thread.
+     */
+    void checkLag(long now, long maxLag) {
+	QueuedListener q = queue;
+	if (q == null || evicted > 0 || q.getQueuedLag(now) <= maxLag)
+	    return;
+	evicted = Math.max(q.getQueued(), 1);
+	sf.verbose.message(name + " too slow, evicted");
+	// Not close(): it waits for the write in progress
+	abortSource();
     }
 
     public void shutdown() {
@@ -102,6 +151,25 @@ public class SFClient extends SFProtocol implements Runnable, PacketListenerIF {
 	thread.start();
     }
 
+    public int getQueued() {
+	QueuedListener q = queue;
+	return q == null ? 0 : q.getQueued();
+    }
+
+    public long getDropped() {
+	QueuedListener q = queue;
+	return q == null ? 0 : q.getDropped();
+    }
+
+    public long getEvicted() {
+	return evicted;
+    }
+
+    public long getSent() {
+	QueuedListener q = queue;
+	return q == null ? 0 : q.getDelivered();
+    }
+
     public final void join(long millis) throws InterruptedException {
 	thread.join(millis);
     }
@@ -113,8 +181,10 @@ public class SFClient extends SFProtocol implements Runnable, PacketListenerIF {
 	}
 	catch (IOException e) { }
 	finally {
-	    listenServer.source.deregisterPacketListener(this);
 	    listenServer.removeSFClient(this);
+	    QueuedListener q = queue;
+	    if (q != null)
+		q.close();
 	    sf.decrementClients();
 	    shutdown();
 	}
@@ -130,10 +200,11 @@ public class SFClient extends SFProtocol implements Runnable, PacketListenerIF {
         }
     }
 
+    // In the queue's thread: write a frame queued by frameReceived
     @Override
-    public void packetReceived(byte[] packet, long mili) {
+    public void packetReceived(byte[] frame, long mili, long nanos) {
 	try {
-	    writePacket(packet, mili);
+	    writeFrame(frame, nanos);
 	}
 	catch (IOException e) {
 	    shutdown();
@@ -141,25 +212,51 @@ public class SFClient extends SFProtocol implements Runnable, PacketListenerIF {
     }
 
     @Override
-    public void packetReceived(byte[] packet) {
-        this.packetReceived(packet, -1);
+    public void packetReceived(byte[] frame, long mili) {
+        this.packetReceived(frame, mili, NanoClock.fromMillis(mili));
     }
-    
+
+    @Override
+    public void packetReceived(byte[] frame) {
+        this.packetReceived(frame, -1);
+    }
+
     /**
-     * Custom packet writing - custom timestamping protocol
-     * @param packet
-     * @param mili
-     * @return
-     * @throws IOException 
+     * Write packet, received at mili (ms since the epoch), to this client
+     * @return true
+     * @deprecated Packets are relayed to clients as frames shared between
+     *   them (see SFFrames and writeFrame)
      */
-    synchronized public boolean writePacket(byte[] packet, long mili) throws IOException {
+    @Deprecated
+    synchronized public boolean writePacket(byte[] packet, long mili)
+	throws IOException {
+	failIfClosed();
+
+	long time = NanoClock.fromMillis(mili);
+	SFFrames frames = new SFFrames();
+	frames.reset(new PacketView(packet, 0, packet.length, time, null));
+	byte[] frame = frames.get(getVersion());
+	if (frame == null)
+	    throw new IOException(packet.length == 0 ? "packet too short"
+				  : "packet too long");
+	writeFrame(frame, time);
+	return true;
+    }
+
+    /**
+     * Write a frame encoded (see SFFrames) in this client's protocol
+     * version
+     */
+    @Override
+    synchronized protected void writeFrame(byte[] frame, long time)
+	throws IOException {
 	failIfClosed();
 
 	try {
-	    return writeSourcePacket(check(packet), mili);
+	    super.writeFrame(frame, time);
 	}
 	catch (IOException e) {
-	    close();
+	    closeAfterError();
 	    throw e;
 	}
     }
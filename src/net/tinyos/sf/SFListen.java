@@ -51,11 +51,17 @@ import java.net.*;
 import java.io.*;
 import java.util.*;
 import net.tinyos.packet.*;
+import net.tinyos.util.NanoClock;
 
 public class SFListen extends Thread implements PacketListenerIF, PhoenixError {
     PhoenixSource source;
     private ServerSocket serverSocket;
+    private SFServer nioServer; // instead of serverSocket, with an IOEngine
     private Vector clients  = new Vector();
+    // Clients past the handshake, which packets are relayed to. Replaced,
+    // never modified (under clients' lock).
+    private volatile SFClient[] receivers = new SFClient[0];
+    private final SFFrames frames = new SFFrames();
     private SerialForwarder sf;
 
     public SFListen(SerialForwarder sf) {
@@ -97,6 +103,11 @@ public class SFListen extends Thread implements PacketListenerIF, PhoenixError {
 	    source.setPacketErrorHandler(this);
 	    source.registerPacketListener(this);
 	    source.start();
+
+	    if (sf.ioEngine != null) {
+		serveNio();
+		return;
+	    }
 	
 	    // open up our server socket
 	    try {
@@ -125,8 +136,60 @@ public class SFListen extends Thread implements PacketListenerIF, PhoenixError {
         }
     }
 
+    // Serve clients with an SFServer, in sf's IOEngine threads, until
+    // shutdown
+    private void serveNio() {
+	SFServer server = new SFServer(source, sf.serverPort, sf.ioEngine) {
+		protected void clientConnected(SFClientStats client) {
+		    sf.debug.message("new " + client.getName());
+		    sf.incrementClients();
+		}
+
+		protected void clientDisconnected(SFClientStats client,
+						  IOException reason) {
+		    if (client.getEvicted() > 0)
+			sf.verbose.message(reason.getMessage());
+		    sf.decrementClients();
+		}
+
+		protected void clientPacketWritten(byte[] packet, boolean acknowledged) {
+		    sf.incrementPacketsWritten();
+		    if (!acknowledged)
+			sf.verbose.message("write failed");
+		}
+	    };
+
+	server.setClientQueue(sf.clientQueueSize, sf.clientOverflow, sf.clientMaxLag);
+	synchronized (this) {
+	    nioServer = server;
+	}
+	try {
+	    server.start();
+	}
+	catch (IOException e) {
+	    sf.message("Could not listen on port: " + sf.serverPort);
+	    return;
+	}
+
+	sf.verbose.message("Listening for client connections on port " + sf.serverPort +
+			   " (non-blocking)");
+	synchronized (this) {
+	    while (server.isRunning()) {
+		try {
+		    wait();
+		}
+		catch (InterruptedException e) {
+		    server.shutdown();
+		}
+	    }
+	}
+    }
+
     private void cleanup() {
 	shutdownAllSFClients();
+	if (nioServer != null) {
+	    nioServer.shutdown();
+	}
 	sf.verbose.message("Closing source");
 	if (source != null) {
 	    source.shutdown();
@@ -156,8 +219,31 @@ public class SFListen extends Thread implements PacketListenerIF, PhoenixError {
 	}
     }
 
+    void addReceiver(SFClient client) {
+	synchronized (clients) {
+	    if (!clients.contains(client))
+		return;
+	    SFClient[] r = new SFClient[receivers.length + 1];
+	    System.arraycopy(receivers, 0, r, 0, receivers.length);
+	    r[receivers.length] = client;
+	    receivers = r;
+	}
+    }
+
     public void removeSFClient(SFClient clientS) {
-        clients.remove(clientS);
+	synchronized (clients) {
+	    clients.remove(clientS);
+	    SFClient[] r = receivers;
+	    for (int i = 0; i < r.length; i++) {
+		if (r[i] == clientS) {
+		    SFClient[] n = new SFClient[r.length - 1];
+		    System.arraycopy(r, 0, n, 0, i);
+		    System.arraycopy(r, i + 1, n, i, n.length - i);
+		    receivers = n;
+		    break;
+		}
+	    }
+	}
     }
 
     @Override
@@ -167,10 +253,59 @@ public class SFListen extends Thread implements PacketListenerIF, PhoenixError {
     
     @Override
     public void packetReceived(byte[] packet, long mili) {
+	packetReceived(new PacketView(packet, 0, packet.length,
+				      NanoClock.fromMillis(mili), null));
+    }
+
+    // Relay packet to the clients, framing it once per protocol version in
+    // use (SFServer does the same for its own clients)
+    @Override
+    public void packetReceived(PacketView packet) {
 	sf.incrementPacketsRead();
+	SFClient[] r = receivers;
+	if (r.length == 0)
+	    return;
+
+	// Evict clients that fell too far behind
+	long maxLag = sf.clientMaxLag;
+	if (maxLag > 0) {
+	    long now = NanoClock.now();
+	    for (int i = 0; i < r.length; i++)
+		r[i].checkLag(now, maxLag * 1000000L);
+	}
+
+	frames.reset(packet);
+	for (int i = 0; i < r.length; i++) {
+	    byte[] frame = frames.get(r[i].getVersion());
+	    if (frame != null)
+		r[i].frameReceived(frame, packet.time());
+	}
+    }
+
+    /**
+     * @return The outbound queue counters of the connected clients
+     */
+    public List<SFClientStats> getClientStats() {
+	SFServer server;
+	synchronized (this) {
+	    server = nioServer;
+	}
+	if (server != null)
+	    return server.getClientStats();
+	List<SFClientStats> stats = new ArrayList<SFClientStats>();
+	Object[] current = clients.toArray();
+	for (int i = 0; i < current.length; i++)
+	    stats.add((SFClient)current[i]);
+	return stats;
     }
 
     public void shutdown() {
+	synchronized (this) {
+	    if (nioServer != null) {
+		nioServer.shutdown();
+		notifyAll();
+	    }
+	}
 	try {
 	    if (serverSocket != null) {
 		serverSocket.close();
@@ -43,6 +43,10 @@
 package net.tinyos.sf;
 
 import java.io.*;
+import net.tinyos.packet.IOEngine;
+import net.tinyos.packet.PacketRing;
+import net.tinyos.packet.SFProtocol;
+import net.tinyos.packet.SFServer;
 import net.tinyos.util.*;
 
 public class SerialForwarder implements Messenger {
@@ -59,6 +63,29 @@ public class SerialForwarder implements Messenger {
 
   public int serverPort = DEFAULT_PORT;
 
+  // If not null, clients are served by this engine's threads (see SFServer)
+  IOEngine ioEngine;
+
+  // Outbound client queues (see setClientQueue)
+  int clientQueueSize = SFServer.DEFAULT_QUEUE_SIZE;
+
+  PacketRing.Overflow clientOverflow = PacketRing.Overflow.DROP_OLDEST;
+
+  long clientMaxLag;
+
+  // Client write batching (see setClientWriteBatching)
+  long clientBatchDelay;
+
+  int clientBatchBytes = DEFAULT_BATCH_BYTES;
+
+  boolean clientCompress;
+
+  /**
+   * Default client write batch size (see setClientWriteBatching): one
+   * ethernet tcp segment
+   */
+  public static final int DEFAULT_BATCH_BYTES = 1460;
+
   private boolean displayHelp = false;
 
   private int nClients = 0;
@@ -157,6 +184,54 @@ public class SerialForwarder implements Messenger {
         } else {
           displayHelp = true;
         }
+      } else if (args[i].equals("-nio")) {
+        try {
+          ioEngine = new IOEngine("SerialForwarder", 2);
+        } catch (IOException e) {
+          System.err.println("Cannot start I/O engine: " + e);
+        }
+      } else if (args[i].equals("-client-queue")) {
+        i++;
+        if (i < args.length) {
+          clientQueueSize = Integer.parseInt(args[i]);
+        } else {
+          displayHelp = true;
+        }
+      } else if (args[i].equals("-client-overflow")) {
+        i++;
+        if (i < args.length && args[i].equals("drop-oldest")) {
+          clientOverflow = PacketRing.Overflow.DROP_OLDEST;
+        } else if (i < args.length && args[i].equals("drop-newest")) {
+          clientOverflow = PacketRing.Overflow.DROP_NEWEST;
+        } else {
+          displayHelp = true;
+        }
+      } else if (args[i].equals("-client-max-lag")) {
+        i++;
+        if (i < args.length) {
+          clientMaxLag = Long.parseLong(args[i]);
+        } else {
+          displayHelp = true;
+        }
+      } else if (args[i].equals("-client-batch-delay")) {
+        i++;
+        if (i < args.length) {
+          clientBatchDelay = Long.parseLong(args[i]);
+        } else {
+          displayHelp = true;
+        }
+      } else if (args[i].equals("-client-batch-bytes")) {
+        i++;
+        if (i < args.length) {
+          clientBatchBytes = Integer.parseInt(args[i]);
+          if (clientBatchBytes < 0 || clientBatchBytes > SFProtocol.MAX_BATCH_BYTES) {
+            displayHelp = true;
+          }
+        } else {
+          displayHelp = true;
+        }
+      } else if (args[i].equals("-client-compress")) {
+        clientCompress = true;
       } else if (args[i].equals("-log")) {
         logDB = true;
       } else if (args[i].equals("-quiet")) {
@@ -179,6 +254,16 @@ public class SerialForwarder implements Messenger {
     System.err.println("-quiet       = non-verbose mode");
     System.err.println("-debug       = display debug messages");
     System.err.println("-log         = log to database");
+    System.err.println("-nio         = serve clients with non-blocking I/O (no thread per client)");
+    System.err.println("-client-queue [size] (default " + SFServer.DEFAULT_QUEUE_SIZE +
+                       ") = packets queued for each client");
+    System.err.println("-client-overflow drop-oldest|drop-newest (default drop-oldest)");
+    System.err.println("-client-max-lag [ms] = disconnect clients stalled longer (default never)");
+    System.err.println("-client-batch-delay [us] = batch writes to clients for up to us microseconds");
+    System.err.println("-client-batch-bytes [size] (default " + DEFAULT_BATCH_BYTES +
+                       ", at most " + SFProtocol.MAX_BATCH_BYTES +
+                       ") = write batches as soon as this big");
+    System.err.println("-client-compress = deflate batches to clients (protocol 'b' only)");
   }
 
   private void createGui() {
@@ -270,6 +355,70 @@ public class SerialForwarder implements Messenger {
         this.serverPort = serverPort;
     }
 
+    public IOEngine getIOEngine() {
+        return ioEngine;
+    }
+
+    /**
+     * Serve clients with engine's threads instead of a thread per client
+     * (takes effect when the listen server is next started). Any number of
+     * forwarders can share an engine.
+     * @param engine The engine to use, or null for a thread per client
+     */
+    public void setIOEngine(IOEngine engine) {
+        this.ioEngine = engine;
+    }
+
+    /**
+     * Set the outbound queue of each client (takes effect for clients
+     * connecting from now on). A client's packets wait in its queue until
+     * its socket takes them, so a slow client never holds up the source
+     * or the other clients.
+     * @param capacity Maximum number of packets queued for a client
+     * @param overflow What to do when a client's queue is full
+     *   (DROP_OLDEST or DROP_NEWEST)
+     * @param maxLagMillis Disconnect a client when packets have waited
+     *   for it this long without it taking any, 0 to never disconnect
+     *   clients
+     */
+    public void setClientQueue(int capacity, PacketRing.Overflow overflow,
+                               long maxLagMillis) {
+        if (capacity <= 0 || maxLagMillis < 0)
+            throw new IllegalArgumentException("bad client queue size or lag");
+        if (overflow == PacketRing.Overflow.BLOCK)
+            throw new IllegalArgumentException("clients cannot block the source");
+        clientQueueSize = capacity;
+        clientOverflow = overflow;
+        clientMaxLag = maxLagMillis;
+    }
+
+    /**
+     * Batch the writes to each client (takes effect for clients
+     * connecting from now on; see SFProtocol.setWriteBatching). Clients
+     * served with an IOEngine are not affected: they are always sent all
+     * their queued packets at once.
+     * @param maxDelayMicros Longest a packet waits to be written, 0 (the
+     *   default) to write each packet immediately
+     * @param maxBytes Write as soon as this many bytes are waiting (at
+     *   most SFProtocol.MAX_BATCH_BYTES)
+     */
+    public void setClientWriteBatching(long maxDelayMicros, int maxBytes) {
+        if (maxDelayMicros < 0 || maxBytes < 0
+            || maxBytes > SFProtocol.MAX_BATCH_BYTES)
+            throw new IllegalArgumentException("bad write batching");
+        clientBatchDelay = maxDelayMicros;
+        clientBatchBytes = maxBytes;
+    }
+
+    /**
+     * Deflate the packet batches written to clients running protocol
+     * version 'b' (see SFProtocol.setCompression; takes effect for
+     * clients connecting from now on). Off by default.
+     */
+    public void setClientCompression(boolean compress) {
+        clientCompress = compress;
+    }
+
     public SFListen getListener() {
         return listener;
     }
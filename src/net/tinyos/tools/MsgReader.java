@@ -41,15 +41,19 @@
 
 package net.tinyos.tools;
 
+import java.io.File;
 import java.util.*;
 
 import net.tinyos.message.*;
 import net.tinyos.packet.*;
 import net.tinyos.util.*;
 
-public class MsgReader implements net.tinyos.message.MessageListener {
+public class MsgReader implements net.tinyos.message.MessageListener,
+                                  SchemaListener {
 
   private MoteIF moteIF;
+
+  private SchemaReceiver schemaReceiver;
   
   public MsgReader(String source) throws Exception {
     if (source != null) {
@@ -70,23 +74,43 @@ public class MsgReader implements net.tinyos.message.MessageListener {
     System.out.println(message);
   }
 
+  public void messageReceived(int to, MessageSchema schema, long[] values,
+                              PacketView packet) {
+    System.out.print("" + packet.millis() + ": ");
+    System.out.println(schema.toString(values));
+  }
+
   
   private static void usage() {
-    System.err.println("usage: MsgReader [-comm <source>] message-class [message-class ...]");
+    System.err.println("usage: MsgReader [-comm <source>] [-schema <file>] message-class|message-name ...");
   }
 
   private void addMsgType(Message msg) {
     moteIF.registerListener(msg, this);
   }
+
+  private void addSchema(SchemaRegistry registry, MessageSchema schema) {
+    if (schemaReceiver == null)
+      schemaReceiver = new SchemaReceiver(moteIF.getSource(), registry);
+    schemaReceiver.registerListener(schema.getAMType(), this);
+  }
   
   public static void main(String[] args) throws Exception {
     String source = null;
     Vector v = new Vector();
+    SchemaRegistry registry = new SchemaRegistry();
+    Vector<MessageSchema> schemas = new Vector<MessageSchema>();
     if (args.length > 0) {
       for (int i = 0; i < args.length; i++) {
 	if (args[i].equals("-comm")) {
 	  source = args[++i];
 	}
+	else if (args[i].equals("-schema")) {
+	  registry.load(new File(args[++i]));
+	}
+	else if (registry.get(args[i]) != null) {
+	  schemas.addElement(registry.get(args[i]));
+	}
 	else {
 	  String className = args[i];
 	  try {
@@ -117,6 +141,8 @@ public class MsgReader implements net.tinyos.message.MessageListener {
       Message m = (Message)msgs.nextElement();
       mr.addMsgType(m);
     }
+    for (MessageSchema schema : schemas)
+      mr.addSchema(registry, schema);
     mr.start();
   }
 
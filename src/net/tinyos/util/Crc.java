@@ -30,8 +30,35 @@
  */
 package net.tinyos.util;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * CRC-CCITT (polynomial 0x1021, initial value 0) as used by the TinyOS
+ * serial protocol.
+ *
+ * Bytes are processed with a 256-entry lookup table; long runs are
+ * processed 8 bytes at a time ("slicing-by-8").
+ */
 public class Crc {
-    public static int calcByte(int crc, int b) {
+    // Runs shorter than this are not worth slicing
+    private static final int SLICE_THRESHOLD = 16;
+
+    // table[k][b] is the crc of byte b followed by k zero bytes
+    private static final int[][] table = new int[8][256];
+
+    static {
+	for (int b = 0; b < 256; b++)
+	    table[0][b] = bitwiseCalcByte(0, b);
+	for (int k = 1; k < 8; k++)
+	    for (int b = 0; b < 256; b++) {
+		int crc = table[k - 1][b];
+		table[k][b] = (crc << 8 ^ table[0][crc >> 8]) & 0xffff;
+	    }
+    }
+
+    // Reference (one bit at a time) implementation, used to build the tables
+    private static int bitwiseCalcByte(int crc, int b) {
       crc = crc ^ (int)b << 8;
 
       for (int i = 0; i < 8; i++) {
@@ -44,10 +71,32 @@ public class Crc {
       return crc & 0xffff;
     }
 
-    public static int calc(byte[] packet, int index, int count) {
-	int crc = 0;
-	int i;
+    public static int calcByte(int crc, int b) {
+	return (crc << 8 ^ table[0][(crc >> 8 ^ b) & 0xff]) & 0xffff;
+    }
+
+    /**
+     * Continue a crc computation over count bytes of packet starting at index
+     * @param crc crc of the preceding bytes (0 to start a new computation)
+     */
+    public static int calc(int crc, byte[] packet, int index, int count) {
+	if (count >= SLICE_THRESHOLD) {
+	    int[] t0 = table[0], t1 = table[1], t2 = table[2], t3 = table[3],
+		t4 = table[4], t5 = table[5], t6 = table[6], t7 = table[7];
 
+	    while (count >= 8) {
+		crc = t7[(crc >> 8 ^ packet[index]) & 0xff] ^
+		    t6[(crc ^ packet[index + 1]) & 0xff] ^
+		    t5[packet[index + 2] & 0xff] ^
+		    t4[packet[index + 3] & 0xff] ^
+		    t3[packet[index + 4] & 0xff] ^
+		    t2[packet[index + 5] & 0xff] ^
+		    t1[packet[index + 6] & 0xff] ^
+		    t0[packet[index + 7] & 0xff];
+		index += 8;
+		count -= 8;
+	    }
+	}
 	while (count > 0) {
 	    crc = calcByte(crc, packet[index++]);
 	    count--;
@@ -55,10 +104,69 @@ public class Crc {
 	return crc;
     }
 
+    public static int calc(byte[] packet, int index, int count) {
+	return calc(0, packet, index, count);
+    }
+
     public static int calc(byte[] packet, int count) {
 	return calc(packet, 0, count);
     }
 
+    /**
+     * Compute the crc of count bytes of buffer starting at absolute
+     * position index. Works on heap and direct buffers and does not
+     * change the buffer's position.
+     */
+    public static int calc(ByteBuffer buffer, int index, int count) {
+	return calc(0, buffer, index, count);
+    }
+
+    /**
+     * Compute the crc of the bytes between buffer's position and limit.
+     * The buffer's position is not changed.
+     */
+    public static int calc(ByteBuffer buffer) {
+	return calc(0, buffer, buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Continue a crc computation over count bytes of buffer starting at
+     * absolute position index
+     * @param crc crc of the preceding bytes (0 to start a new computation)
+     */
+    public static int calc(int crc, ByteBuffer buffer, int index, int count) {
+	if (buffer.hasArray())
+	    return calc(crc, buffer.array(), buffer.arrayOffset() + index, count);
+
+	if (count >= SLICE_THRESHOLD) {
+	    int[] t0 = table[0], t1 = table[1], t2 = table[2], t3 = table[3],
+		t4 = table[4], t5 = table[5], t6 = table[6], t7 = table[7];
+	    boolean swap = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+
+	    while (count >= 8) {
+		long v = buffer.getLong(index);
+		if (swap)
+		    v = Long.reverseBytes(v);
+		// v now holds the 8 bytes with the first one most significant
+		crc = t7[(crc >> 8 ^ (int)(v >>> 56)) & 0xff] ^
+		    t6[(crc ^ (int)(v >>> 48)) & 0xff] ^
+		    t5[(int)(v >>> 40) & 0xff] ^
+		    t4[(int)(v >>> 32) & 0xff] ^
+		    t3[(int)(v >>> 24) & 0xff] ^
+		    t2[(int)(v >>> 16) & 0xff] ^
+		    t1[(int)(v >>> 8) & 0xff] ^
+		    t0[(int)v & 0xff];
+		index += 8;
+		count -= 8;
+	    }
+	}
+	while (count > 0) {
+	    crc = calcByte(crc, buffer.get(index++));
+	    count--;
+	}
+	return crc;
+    }
+
     public static void set(byte[] packet) {
         int crc = Crc.calc(packet, packet.length - 2);
 
@@ -0,0 +1,34 @@
+package net.tinyos.util;
+
+/**
+ * High-resolution wall-clock timestamps. System.nanoTime() is anchored
+ * to System.currentTimeMillis() once, when this class is loaded, so
+ * timestamps are monotonic, have nanosecond resolution, and can still be
+ * compared with (and converted to) ordinary millisecond times.
+ */
+public class NanoClock {
+    private static final long baseMillis = System.currentTimeMillis();
+    private static final long baseNanos = System.nanoTime();
+
+    /**
+     * @return The current time in nanoseconds since the epoch
+     */
+    public static long now() {
+	return baseMillis * 1000000L + (System.nanoTime() - baseNanos);
+    }
+
+    /**
+     * @return nanos (a NanoClock time) converted to milliseconds since
+     *   the epoch
+     */
+    public static long toMillis(long nanos) {
+	return nanos / 1000000L;
+    }
+
+    /**
+     * @return millis (milliseconds since the epoch) as a NanoClock time
+     */
+    public static long fromMillis(long millis) {
+	return millis * 1000000L;
+    }
+}